@@ -2,9 +2,14 @@ package uk.co.appoly.arcorelocation;
 
 import com.google.ar.sceneform.AnchorNode;
 import com.google.ar.sceneform.Node;
+import com.google.ar.sceneform.rendering.Renderable;
+
+import java.util.Arrays;
 
 import uk.co.appoly.arcorelocation.rendering.LocationNode;
 import uk.co.appoly.arcorelocation.rendering.LocationNodeRender;
+import uk.co.appoly.arcorelocation.rendering.LocationNodeViewChanged;
+import uk.co.appoly.arcorelocation.utils.MarkerStore;
 
 /**
  * Created by John on 02/03/2018.
@@ -12,9 +17,10 @@ import uk.co.appoly.arcorelocation.rendering.LocationNodeRender;
 
 public class LocationMarker {
 
-    // Location in real-world terms
-    public double longitude;
-    public double latitude;
+    // Location in real-world terms.
+    // Only used until the marker is added to a scene, after that it lives in the scene's MarkerStore
+    private double longitude;
+    private double latitude;
 
     // Location in AR terms
     public LocationNode anchorNode;
@@ -24,19 +30,180 @@ public class LocationMarker {
 
     // Called on each frame if not null
     private LocationNodeRender renderEvent;
+    // Called when the marker enters or leaves the view, if culling
+    private LocationNodeViewChanged viewEvent;
     private float scaleModifier = 1F;
     private float height = 0F;
     private int onlyRenderWhenWithin = Integer.MAX_VALUE;
+    // Higher goes first when the scene has a marker budget
+    private float priority = 0F;
+    // Markers we were placed for at the last refresh, and the node shown for them
+    int clusterSize = 1;
+    Node clusterNode;
     private ScalingMode scalingMode = ScalingMode.FIXED_SIZE_ON_SCREEN;
     private float gradualScalingMinScale = 0.8F;
     private float gradualScalingMaxScale = 1.4F;
 
+    // The store holding our position while we belong to a scene, and our id within it
+    private MarkerStore store;
+    private int id = -1;
+    // The last scene refresh that placed this marker
+    int placedRefresh = 0;
+    // Our position in LocationScene's central update list, -1 if not in it
+    int updateSlot = -1;
+    // Levels of detail, nearest first: each renderable is used up to its distance,
+    // the last one beyond that too
+    private int detailCount = 0;
+    private int[] detailDistances = new int[2];
+    private Renderable[] detailRenderables = new Renderable[2];
+    private int detailLevel = -1;
+
     public LocationMarker(double longitude, double latitude, Node node) {
         this.longitude = longitude;
         this.latitude = latitude;
         this.node = node;
     }
 
+    public double getLongitude() {
+        return store != null ? store.getLongitude(id) : longitude;
+    }
+
+    public void setLongitude(double longitude) {
+        setLocation(getLatitude(), longitude);
+    }
+
+    public double getLatitude() {
+        return store != null ? store.getLatitude(id) : latitude;
+    }
+
+    public void setLatitude(double latitude) {
+        setLocation(latitude, getLongitude());
+    }
+
+    public void setLocation(double latitude, double longitude) {
+        if (store != null) {
+            store.setPosition(id, latitude, longitude);
+        } else {
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+    }
+
+    /**
+     * Id within the scene's MarkerStore
+     *
+     * @return - id, or -1 if not added to a scene
+     */
+    public int getId() {
+        return id;
+    }
+
+    boolean isAttached() {
+        return store != null;
+    }
+
+    int attachTo(MarkerStore store) {
+        this.id = store.add(latitude, longitude, onlyRenderWhenWithin);
+        this.store = store;
+        return id;
+    }
+
+    void detachFrom(MarkerStore store) {
+        latitude = store.getLatitude(id);
+        longitude = store.getLongitude(id);
+        store.remove(id);
+        this.store = null;
+        this.id = -1;
+    }
+
+    /**
+     * Takes our anchor and node out of the AR scene, once we've been removed from it
+     */
+    void releaseAnchorNode() {
+        if (anchorNode != null) {
+            if (anchorNode.getAnchor() != null) {
+                anchorNode.getAnchor().detach();
+                anchorNode.setAnchor(null);
+            }
+            anchorNode.setParent(null);
+            anchorNode = null;
+        }
+    }
+
+    /**
+     * Use [renderable] for this marker's node while it's within [withinMetres],
+     * and no nearer level applies. The farthest level is also used beyond its distance.
+     * The scene switches between levels as the marker's distance changes.
+     *
+     * @param withinMetres - real-world distance, as LocationNode.getDistance
+     */
+    public void addLevelOfDetail(int withinMetres, Renderable renderable) {
+        if (detailCount == detailDistances.length) {
+            detailDistances = Arrays.copyOf(detailDistances, detailCount * 2);
+            detailRenderables = Arrays.copyOf(detailRenderables, detailCount * 2);
+        }
+        int i = detailCount++;
+        while (i > 0 && detailDistances[i - 1] > withinMetres) {
+            detailDistances[i] = detailDistances[i - 1];
+            detailRenderables[i] = detailRenderables[i - 1];
+            i--;
+        }
+        detailDistances[i] = withinMetres;
+        detailRenderables[i] = renderable;
+        detailLevel = -1;
+    }
+
+    public void clearLevelsOfDetail() {
+        Arrays.fill(detailRenderables, 0, detailCount, null);
+        detailCount = 0;
+        detailLevel = -1;
+    }
+
+    public int getLevelOfDetailCount() {
+        return detailCount;
+    }
+
+    /**
+     * The level of detail in use, 0 being nearest
+     *
+     * @return - level, or -1 if none has been chosen yet
+     */
+    public int getLevelOfDetail() {
+        return detailLevel;
+    }
+
+    /**
+     * Picks the level of detail for [distance], and gives its renderable to our node if it changed.
+     * Leaving a level needs the distance to pass its boundary by [hysteresis],
+     * so a marker sat on a boundary doesn't flicker between the two.
+     *
+     * @param hysteresis - fraction of the boundary distance
+     */
+    void updateLevelOfDetail(double distance, float hysteresis) {
+        if (detailCount == 0)
+            return;
+
+        int level = selectLevel(detailDistances, detailCount, detailLevel, distance, hysteresis);
+        if (level != detailLevel) {
+            detailLevel = level;
+            node.setRenderable(detailRenderables[level]);
+        }
+    }
+
+    static int selectLevel(int[] distances, int count, int current, double distance, float hysteresis) {
+        int level = 0;
+        while (level < count - 1 && distance > distances[level])
+            level++;
+        if (current < 0 || current >= count)
+            return level;
+
+        if (level > current && distance <= distances[current] * (1 + hysteresis))
+            return current;
+        if (level < current && distance >= distances[current - 1] * (1 - hysteresis))
+            return current;
+        return level;
+    }
+
     public float getGradualScalingMinScale() {
         return gradualScalingMinScale;
     }
@@ -69,6 +236,32 @@ public class LocationMarker {
      */
     public void setOnlyRenderWhenWithin(int onlyRenderWhenWithin) {
         this.onlyRenderWhenWithin = onlyRenderWhenWithin;
+        if (store != null)
+            store.setRenderWithin(id, onlyRenderWhenWithin);
+    }
+
+    /**
+     * How many markers this one was placed for at the last refresh, see LocationScene.setClustering
+     *
+     * @return - 1 normally, more if it's standing in for a cluster,
+     * 0 if it joined a nearer marker's cluster
+     */
+    public int getClusterSize() {
+        return clusterSize;
+    }
+
+    public float getPriority() {
+        return priority;
+    }
+
+    /**
+     * When the scene has more markers in range than LocationScene.setMaxActiveMarkers allows,
+     * higher priority markers are kept first, then the nearest.
+     *
+     * @param priority - 0 by default
+     */
+    public void setPriority(float priority) {
+        this.priority = priority;
     }
 
     /**
@@ -141,6 +334,17 @@ public class LocationMarker {
         this.renderEvent = renderEvent;
     }
 
+    public LocationNodeViewChanged getViewEvent() {
+        return viewEvent;
+    }
+
+    /**
+     * Called when the marker comes into or goes out of view, see LocationScene.setCullingEnabled.
+     */
+    public void setViewEvent(LocationNodeViewChanged viewEvent) {
+        this.viewEvent = viewEvent;
+    }
+
     public enum ScalingMode {
         FIXED_SIZE_ON_SCREEN,
         NO_SCALING,
@@ -0,0 +1,111 @@
+package uk.co.appoly.arcorelocation;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+import uk.co.appoly.arcorelocation.utils.MarkerStore;
+
+/**
+ * The markers belonging to a LocationScene.
+ * <p>
+ * Behaves like a normal List, but marker positions live in a MarkerStore.
+ * Removing a marker also takes its node out of the AR scene.
+ * Each LocationMarker added becomes a handle onto its id in the store, which
+ * keeps positions packed in primitive arrays and indexed in a GeoGrid, so a
+ * refresh only has to look at markers that could be within range of the device.
+ */
+public class LocationMarkerList extends AbstractList<LocationMarker> implements RandomAccess {
+
+    private final ArrayList<LocationMarker> markers = new ArrayList<>();
+    private final MarkerStore store;
+
+    // Store id -> marker
+    private LocationMarker[] markersById = new LocationMarker[16];
+
+    public LocationMarkerList() {
+        this(new MarkerStore());
+    }
+
+    public LocationMarkerList(MarkerStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public LocationMarker get(int index) {
+        return markers.get(index);
+    }
+
+    @Override
+    public int size() {
+        return markers.size();
+    }
+
+    @Override
+    public void add(int index, LocationMarker marker) {
+        attach(marker);
+        markers.add(index, marker);
+        modCount++;
+    }
+
+    @Override
+    public LocationMarker set(int index, LocationMarker marker) {
+        LocationMarker previous = markers.get(index);
+        if (previous == marker)
+            return previous;
+        attach(marker);
+        markers.set(index, marker);
+        detach(previous);
+        return previous;
+    }
+
+    @Override
+    public LocationMarker remove(int index) {
+        LocationMarker removed = markers.remove(index);
+        detach(removed);
+        modCount++;
+        return removed;
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < markers.size(); i++) {
+            markers.get(i).detachFrom(store);
+            markers.get(i).releaseAnchorNode();
+        }
+        markers.clear();
+        store.clear();
+        Arrays.fill(markersById, null);
+        modCount++;
+    }
+
+    /**
+     * Positions of every marker in the list
+     */
+    public MarkerStore getStore() {
+        return store;
+    }
+
+    LocationMarker getById(int id) {
+        return markersById[id];
+    }
+
+    private void attach(LocationMarker marker) {
+        if (marker == null)
+            throw new NullPointerException("Marker is null");
+        if (marker.isAttached())
+            throw new IllegalStateException("Marker already belongs to a LocationScene");
+
+        int id = marker.attachTo(store);
+        if (id >= markersById.length)
+            markersById = Arrays.copyOf(markersById, Math.max(id + 1, markersById.length * 2));
+        markersById[id] = marker;
+    }
+
+    private void detach(LocationMarker marker) {
+        markersById[marker.getId()] = null;
+        marker.detachFrom(store);
+        marker.releaseAnchorNode();
+    }
+}
@@ -1,23 +1,43 @@
 package uk.co.appoly.arcorelocation;
 
 import android.app.Activity;
+import android.location.Location;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.google.ar.core.Anchor;
 import com.google.ar.core.Frame;
 import com.google.ar.core.Pose;
 import com.google.ar.core.Session;
+import com.google.ar.core.TrackingState;
+import com.google.ar.sceneform.AnchorNode;
 import com.google.ar.sceneform.ArSceneView;
 import com.google.ar.sceneform.math.Vector3;
 
 import java.util.ArrayList;
-
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+
+import uk.co.appoly.arcorelocation.rendering.CameraSnapshot;
+import uk.co.appoly.arcorelocation.rendering.LocationClusterRenderer;
 import uk.co.appoly.arcorelocation.rendering.LocationNode;
+import uk.co.appoly.arcorelocation.rendering.LocationNodeViewChanged;
+import uk.co.appoly.arcorelocation.rendering.UpdateTiers;
 import uk.co.appoly.arcorelocation.sensor.DeviceLocation;
 import uk.co.appoly.arcorelocation.sensor.DeviceLocationChanged;
 import uk.co.appoly.arcorelocation.sensor.DeviceOrientation;
+import uk.co.appoly.arcorelocation.sensor.LocationFilterChain;
+import uk.co.appoly.arcorelocation.sensor.TraceRecorder;
 import uk.co.appoly.arcorelocation.utils.LocationUtils;
+import uk.co.appoly.arcorelocation.utils.MarkerStore;
+import uk.co.appoly.arcorelocation.utils.OcclusionBins;
+import uk.co.appoly.arcorelocation.utils.VisualInertialFusion;
+import uk.co.appoly.arcorelocation.utils.MarkerPlacements;
 
 /**
  * Created by John on 02/03/2018.
@@ -25,20 +45,41 @@ import uk.co.appoly.arcorelocation.utils.LocationUtils;
 
 public class LocationScene {
 
+    private static Executor sharedComputeExecutor;
+    // How far apart overlapping markers are stacked when offsetOverlapping
+    private static final float STACK_SPACING = 1.2F;
+    // Metres the predicted position has to move before marker distances are worked out again
+    private static final double PREDICTION_VERSION_DISTANCE = 0.25;
+    // Top two bits of a distance version say where the device position came from
+    private static final int SOURCE_VERSION_MASK = 0x3FFFFFFF;
+    private static final int FUSED_VERSION = 1 << 30;
+    private static final int PREDICTED_VERSION = 2 << 30;
+
     private float RENDER_DISTANCE = 25f;
     public ArSceneView mArSceneView;
     public DeviceLocation deviceLocation;
     public DeviceOrientation deviceOrientation;
     public Activity context;
-    public ArrayList<LocationMarker> mLocationMarkers = new ArrayList<>();
+    public final LocationMarkerList mLocationMarkers = new LocationMarkerList();
     // Anchors are currently re-drawn on an interval. There are likely better
     // ways of doing this, however it's sufficient for now.
     private int anchorRefreshInterval = 1000 * 5; // 5 seconds
     // Limit of where to draw markers within AR scene.
     // They will auto scale, but this helps prevents rendering issues
     private int distanceLimit = 30;
+    // Markers further away than this aren't rendered at all.
+    // Lets a refresh skip whole areas of the marker index.
+    private int renderRadius = Integer.MAX_VALUE;
+    // How marker distances and bearings are worked out, and where approximations stop
+    private LocationUtils.GeoMathMode geoMathMode = LocationUtils.GeoMathMode.HAVERSINE;
+    private int approximationRange = 10000;
+    // Anchors are only replaced when a marker's target moves further than these
+    private float reanchorDistanceThreshold = 0.5F;
+    private float reanchorBearingThreshold = 3F;
     private boolean offsetOverlapping = false;
     private boolean removeOverlapping = false;
+    // Markers closer together than this, seen from the camera, overlap
+    private OcclusionBins occlusionBins = new OcclusionBins(12F);
     // Bearing adjustment. Can be set to calibrate with true north
     private int bearingAdjustment = 0;
     private String TAG = "LocationScene";
@@ -56,6 +97,65 @@ public class LocationScene {
     private boolean debugEnabled = false;
     private Session mSession;
     private DeviceLocationChanged locationChangedEvent;
+    // Refresh geometry is computed on this, against a snapshot, and handed back through readyPlacements.
+    // Two buffers, so one can be computed while the other is being placed
+    private Executor computeExecutor = sharedComputeExecutor();
+    private final AtomicReference<PlacementBuffer> readyPlacements = new AtomicReference<>();
+    private final PlacementBuffer[] placementBuffers = {
+            new PlacementBuffer(readyPlacements), new PlacementBuffer(readyPlacements)};
+    private PlacementBuffer computingPlacements;
+    private PlacementBuffer applyingPlacements;
+    // Reused between refreshes
+    private int[] activeIndices = new int[16];
+    private double[] activeDistances = new double[16];
+    private double[] activeBearings = new double[16];
+    private ArrayList<LocationMarker> activeMarkers = new ArrayList<>();
+    private ArrayList<LocationMarker> placedMarkers = new ArrayList<>();
+    private int refreshCount = 0;
+    private final CameraSnapshot cameraSnapshot = new CameraSnapshot();
+    private final float[] placement = new float[3];
+    private final float[] anchorPosition = new float[3];
+    // A refresh in progress, spread over as many frames as the budget needs
+    private float refreshFrameBudget = 2F; // milliseconds
+    private int refreshTotal = 0;
+    private int refreshCursor = 0;
+    private int refreshFrames = 0;
+    private int refreshReanchored = 0;
+    private int lastRefreshFrameCount = 0;
+    // Single root anchor mode: markers are plain child nodes of one anchor, placed by offsets
+    private boolean useRootAnchor = false;
+    private AnchorNode rootAnchorNode;
+    private final float[] rootTranslation = new float[3];
+    private final float[] rootRotation = new float[4];
+    private final Vector3 localPosition = new Vector3();
+    // Central updates: every placed marker in one dense array, updated in one loop per frame
+    private boolean useCentralUpdates = false;
+    private LocationMarker[] updateMarkers = new LocationMarker[16];
+    private int updateCount = 0;
+    private float markerUpdateTime = 0;
+    // Markers outside the camera's view cone skip their per-frame work
+    private boolean cullingEnabled = false;
+    // How far past a level of detail's boundary a marker has to go to leave it
+    private float detailHysteresis = 0.1F;
+    // How often nodes update, by distance
+    private final UpdateTiers updateTiers = new UpdateTiers();
+    // Most markers anchored at once, the rest don't get nodes
+    private int maxActiveMarkers = Integer.MAX_VALUE;
+    // Distant markers nearly in line are merged, see setClustering
+    private float clusterAngle = 0;
+    private int clusterDistance = 500;
+    private LocationClusterRenderer clusterRenderer;
+    // Device position moved by ARCore's camera tracking between fixes
+    private boolean useVisualInertialFusion = false;
+    private final VisualInertialFusion visualInertialFusion = new VisualInertialFusion();
+    private int fusedLocationVersion = -1;
+    // Device position carried on between fixes at the speed and direction it's been moving
+    private boolean usePredictedLocation = false;
+    private final double[] predictedLocation = new double[2];
+    private boolean hasPredictedLocation = false;
+    private double predictedLatitude;
+    private double predictedLongitude;
+    private int predictedLocationVersion = 0;
 
     public LocationScene(Activity context, ArSceneView mArSceneView) {
         this.context = context;
@@ -128,6 +228,23 @@ public class LocationScene {
         this.locationChangedEvent = locationChangedEvent;
     }
 
+    /**
+     * The checks each new location fix goes through before it's used.
+     * Stages can be added, removed or replaced, and each counts what it accepted and rejected.
+     */
+    public LocationFilterChain getLocationFilterChain() {
+        return deviceLocation.getFilterChain();
+    }
+
+    /**
+     * Records every location fix and compass sample to [traceRecorder], to be replayed
+     * later on a normal JVM with TraceReplayer. Pass null to stop; closing the recorder is up to you.
+     */
+    public void setTraceRecorder(TraceRecorder traceRecorder) {
+        deviceLocation.setTraceRecorder(traceRecorder);
+        deviceOrientation.setTraceRecorder(traceRecorder);
+    }
+
     public int getAnchorRefreshInterval() {
         return anchorRefreshInterval;
     }
@@ -144,15 +261,19 @@ public class LocationScene {
     }
 
     public void clearMarkers() {
-        for (LocationMarker lm : mLocationMarkers) {
-            if (lm.anchorNode != null) {
-                lm.anchorNode.getAnchor().detach();
-                lm.anchorNode.setEnabled(false);
-                lm.anchorNode = null;
-            }
-
+        // Clearing the list also takes every marker's node out of the scene
+        activeMarkers.clear();
+        placedMarkers.clear();
+        for (int i = 0; i < updateCount; i++) {
+            updateMarkers[i].updateSlot = -1;
+            updateMarkers[i] = null;
         }
-        mLocationMarkers = new ArrayList<>();
+        updateCount = 0;
+        if (applyingPlacements != null) {
+            applyingPlacements.release();
+            applyingPlacements = null;
+        }
+        mLocationMarkers.clear();
     }
 
     /**
@@ -174,6 +295,412 @@ public class LocationScene {
         this.distanceLimit = distanceLimit;
     }
 
+    /**
+     * Markers further than this many metres away from the device are not rendered.
+     *
+     * @return - metres, Integer.MAX_VALUE when unlimited
+     */
+    public int getRenderRadius() {
+        return renderRadius;
+    }
+
+    /**
+     * Markers further than this many metres away from the device are not rendered.
+     * Along with each marker's onlyRenderWhenWithin, this decides how much of the
+     * marker index a refresh has to visit - keep it small for large marker sets.
+     *
+     * @param renderRadius - metres, Integer.MAX_VALUE for unlimited
+     */
+    public void setRenderRadius(int renderRadius) {
+        this.renderRadius = renderRadius;
+        anchorsNeedRefresh = true;
+    }
+
+    /**
+     * How marker distances and bearings are worked out.
+     *
+     * @return - GeoMathMode
+     */
+    public LocationUtils.GeoMathMode getGeoMathMode() {
+        return geoMathMode;
+    }
+
+    /**
+     * How marker distances and bearings are worked out.
+     * LOCAL_TANGENT_PLANE is cheaper, and is only used for markers within the approximation range.
+     *
+     * @param geoMathMode - LocationUtils.GeoMathMode.X
+     */
+    public void setGeoMathMode(LocationUtils.GeoMathMode geoMathMode) {
+        this.geoMathMode = geoMathMode;
+    }
+
+    /**
+     * Markers further than this use haversine, whatever the GeoMathMode.
+     *
+     * @return - metres
+     */
+    public int getApproximationRange() {
+        return approximationRange;
+    }
+
+    /**
+     * Markers further than this use haversine, whatever the GeoMathMode.
+     * See LocationUtils.GeoMathMode for how the error grows with range.
+     *
+     * @param approximationRange - metres
+     */
+    public void setApproximationRange(int approximationRange) {
+        this.approximationRange = approximationRange;
+    }
+
+    private double approximateWithin() {
+        return geoMathMode == LocationUtils.GeoMathMode.LOCAL_TANGENT_PLANE ? approximationRange : 0;
+    }
+
+    /**
+     * A refresh keeps a marker's existing anchor unless its newly calculated
+     * position is further than this from it.
+     *
+     * @return - metres
+     */
+    public float getReanchorDistanceThreshold() {
+        return reanchorDistanceThreshold;
+    }
+
+    /**
+     * A refresh keeps a marker's existing anchor unless its newly calculated
+     * position is further than this from it. 0 re-anchors every marker on every refresh.
+     *
+     * @param reanchorDistanceThreshold - metres
+     */
+    public void setReanchorDistanceThreshold(float reanchorDistanceThreshold) {
+        this.reanchorDistanceThreshold = reanchorDistanceThreshold;
+    }
+
+    /**
+     * A refresh keeps a marker's existing anchor unless the bearing to it
+     * has changed by more than this.
+     *
+     * @return - degrees
+     */
+    public float getReanchorBearingThreshold() {
+        return reanchorBearingThreshold;
+    }
+
+    /**
+     * A refresh keeps a marker's existing anchor unless the bearing to it
+     * has changed by more than this. 0 re-anchors every marker on every refresh.
+     *
+     * @param reanchorBearingThreshold - degrees
+     */
+    public void setReanchorBearingThreshold(float reanchorBearingThreshold) {
+        this.reanchorBearingThreshold = reanchorBearingThreshold;
+    }
+
+    /**
+     * Time a refresh may spend placing markers each frame.
+     *
+     * @return - milliseconds
+     */
+    public float getRefreshFrameBudget() {
+        return refreshFrameBudget;
+    }
+
+    /**
+     * Time a refresh may spend placing markers each frame. Markers are placed nearest first,
+     * and whatever is left over carries on next frame. 0 places every marker in one frame.
+     *
+     * @param refreshFrameBudget - milliseconds
+     */
+    public void setRefreshFrameBudget(float refreshFrameBudget) {
+        this.refreshFrameBudget = refreshFrameBudget;
+    }
+
+    /**
+     * Whether a refresh is being computed, or has yet to place every marker in range.
+     */
+    public boolean isRefreshInProgress() {
+        return computingPlacements != null || applyingPlacements != null;
+    }
+
+    /**
+     * How many frames the last completed refresh was spread over.
+     */
+    public int getLastRefreshFrameCount() {
+        return lastRefreshFrameCount;
+    }
+
+    public boolean isUsingRootAnchor() {
+        return useRootAnchor;
+    }
+
+    /**
+     * Hang every marker off one scene-level anchor instead of giving each its own.
+     * ARCore then only tracks one anchor, and a refresh just moves nodes around underneath it.
+     * The root is only re-anchored when it stops tracking.
+     *
+     * @param useRootAnchor
+     */
+    public void setUseRootAnchor(boolean useRootAnchor) {
+        this.useRootAnchor = useRootAnchor;
+        anchorsNeedRefresh = true;
+    }
+
+    public boolean isUsingCentralUpdates() {
+        return useCentralUpdates;
+    }
+
+    /**
+     * Update every marker from processFrame, in one loop over the placed markers,
+     * instead of each LocationNode updating itself from Sceneform's onUpdate.
+     * Hidden and parked markers are skipped, and the whole stage is timed - see getMarkerUpdateTime.
+     * processFrame must be called every frame while this is on.
+     *
+     * @param useCentralUpdates
+     */
+    public void setUseCentralUpdates(boolean useCentralUpdates) {
+        this.useCentralUpdates = useCentralUpdates;
+    }
+
+    /**
+     * Time the last frame spent updating markers, when using central updates.
+     *
+     * @return - milliseconds
+     */
+    public float getMarkerUpdateTime() {
+        return markerUpdateTime;
+    }
+
+    public boolean isCullingEnabled() {
+        return cullingEnabled;
+    }
+
+    /**
+     * Skip markers outside the camera's view: no scaling, rotation, overlap checks or render events
+     * until they come back. Markers can be told when they enter and leave the view with
+     * LocationMarker.setViewEvent.
+     *
+     * @param cullingEnabled
+     */
+    public void setCullingEnabled(boolean cullingEnabled) {
+        this.cullingEnabled = cullingEnabled;
+
+        if (!cullingEnabled) {
+            for (int i = 0; i < updateCount; i++) {
+                LocationNode anchorNode = updateMarkers[i].anchorNode;
+                if (anchorNode != null)
+                    anchorNode.setCulled(false);
+            }
+        }
+    }
+
+    /**
+     * How far outside the edges of the screen markers are still treated as in view.
+     *
+     * @return - degrees
+     */
+    public float getCullingMargin() {
+        return cameraSnapshot.getViewMargin();
+    }
+
+    /**
+     * How far outside the edges of the screen markers are still treated as in view,
+     * so they're ready before they appear.
+     *
+     * @param cullingMargin - degrees, 10 by default
+     */
+    public void setCullingMargin(float cullingMargin) {
+        cameraSnapshot.setViewMargin(cullingMargin);
+    }
+
+    public boolean isUsingPredictedLocation() {
+        return usePredictedLocation;
+    }
+
+    /**
+     * Between GPS fixes, carry the device's position on at the speed and direction it's been
+     * moving (see DeviceLocation.predictLocation), so marker distances and placements advance
+     * smoothly rather than sitting still then jumping. Ignored while visual-inertial fusion is on,
+     * which tracks movement between fixes itself.
+     *
+     * @param usePredictedLocation
+     */
+    public void setUsePredictedLocation(boolean usePredictedLocation) {
+        if (this.usePredictedLocation == usePredictedLocation)
+            return;
+        this.usePredictedLocation = usePredictedLocation;
+        hasPredictedLocation = false;
+        anchorsNeedRefresh = true;
+    }
+
+    public boolean isUsingVisualInertialFusion() {
+        return useVisualInertialFusion;
+    }
+
+    /**
+     * Move the device's position with ARCore's camera tracking between GPS fixes,
+     * and blend each fix in by its accuracy, rather than jumping to every fix.
+     * Markers stay steadier, and anchors are refreshed less often and by less.
+     * Tuned through getVisualInertialFusion.
+     *
+     * @param useVisualInertialFusion
+     */
+    public void setUseVisualInertialFusion(boolean useVisualInertialFusion) {
+        if (this.useVisualInertialFusion == useVisualInertialFusion)
+            return;
+        this.useVisualInertialFusion = useVisualInertialFusion;
+        visualInertialFusion.reset();
+        fusedLocationVersion = -1;
+        anchorsNeedRefresh = true;
+    }
+
+    /**
+     * The fused position and its accuracy, and the heading offset between ARCore's world and north.
+     */
+    public VisualInertialFusion getVisualInertialFusion() {
+        return visualInertialFusion;
+    }
+
+    public int getMaxActiveMarkers() {
+        return maxActiveMarkers;
+    }
+
+    /**
+     * Most markers to place at once. Each refresh keeps the highest priority markers in range
+     * (see LocationMarker.setPriority), then the nearest, and the rest give up their anchors and nodes.
+     *
+     * @param maxActiveMarkers - Integer.MAX_VALUE for no limit, the default
+     */
+    public void setMaxActiveMarkers(int maxActiveMarkers) {
+        this.maxActiveMarkers = maxActiveMarkers;
+        anchorsNeedRefresh = true;
+    }
+
+    /**
+     * How close together markers can appear before they're clustered.
+     *
+     * @return - degrees, 0 when clustering is off
+     */
+    public float getClusterAngle() {
+        return clusterAngle;
+    }
+
+    public int getClusterDistance() {
+        return clusterDistance;
+    }
+
+    /**
+     * Merge markers further than [beyondMetres] that appear within [degrees] of each other
+     * into one cluster, placed at its nearest marker. Clusters split again as the device gets closer.
+     * The nearest marker stands in for the whole cluster - see LocationMarker.getClusterSize -
+     * and shows the node from setClusterRenderer, if there is one.
+     *
+     * @param degrees      - 0 to turn clustering off, the default
+     * @param beyondMetres - real-world distance, markers nearer than this are never clustered
+     */
+    public void setClustering(float degrees, int beyondMetres) {
+        this.clusterAngle = degrees;
+        this.clusterDistance = beyondMetres;
+        anchorsNeedRefresh = true;
+    }
+
+    public LocationClusterRenderer getClusterRenderer() {
+        return clusterRenderer;
+    }
+
+    /**
+     * Makes the node shown in place of a cluster's markers. Set it before markers are clustered.
+     */
+    public void setClusterRenderer(LocationClusterRenderer clusterRenderer) {
+        this.clusterRenderer = clusterRenderer;
+        anchorsNeedRefresh = true;
+    }
+
+    /**
+     * How often markers update by distance, and how many updates have been skipped.
+     */
+    public UpdateTiers getUpdateTiers() {
+        return updateTiers;
+    }
+
+    /**
+     * Update nearer markers more often than distant ones. Markers within [nearDistance] update every frame,
+     * those within [farDistance] every [midInterval] frames, and those beyond only when the camera
+     * has moved or turned past setFarUpdateThresholds. Everything updates every frame by default.
+     *
+     * @param nearDistance - metres
+     * @param farDistance  - metres
+     * @param midInterval  - frames
+     */
+    public void setUpdateTiers(int nearDistance, int farDistance, int midInterval) {
+        updateTiers.setTiers(nearDistance, farDistance, midInterval);
+    }
+
+    /**
+     * How far the camera has to move or turn before far markers update, see setUpdateTiers.
+     *
+     * @param moveMetres      - 1 by default
+     * @param rotationDegrees - 5 by default
+     */
+    public void setFarUpdateThresholds(float moveMetres, float rotationDegrees) {
+        updateTiers.setFarThresholds(moveMetres, rotationDegrees);
+    }
+
+    /**
+     * Marker updates skipped by setUpdateTiers, since getUpdateTiers().resetCounters()
+     */
+    public long getSkippedUpdateCount() {
+        return updateTiers.getSkippedCount();
+    }
+
+    public float getDetailHysteresis() {
+        return detailHysteresis;
+    }
+
+    /**
+     * How far a marker has to go past a level of detail's boundary before it switches,
+     * see LocationMarker.addLevelOfDetail. Stops markers near a boundary swapping back and forth.
+     *
+     * @param detailHysteresis - fraction of the boundary distance, 0.1 by default
+     */
+    public void setDetailHysteresis(float detailHysteresis) {
+        this.detailHysteresis = detailHysteresis;
+    }
+
+    /**
+     * Refresh geometry (distances, bearings, placements) is worked out on this,
+     * leaving only the ARCore and Sceneform calls on the render thread.
+     * By default one background thread is shared by every LocationScene.
+     */
+    public Executor getComputeExecutor() {
+        return computeExecutor;
+    }
+
+    /**
+     * Refresh geometry (distances, bearings, placements) is worked out on this,
+     * leaving only the ARCore and Sceneform calls on the render thread.
+     *
+     * @param computeExecutor - null to compute on the render thread
+     */
+    public void setComputeExecutor(Executor computeExecutor) {
+        this.computeExecutor = computeExecutor;
+    }
+
+    private static synchronized Executor sharedComputeExecutor() {
+        if (sharedComputeExecutor == null) {
+            sharedComputeExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "LocationScene compute");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sharedComputeExecutor;
+    }
+
     public boolean shouldOffsetOverlapping() {
         return offsetOverlapping;
     }
@@ -183,13 +710,15 @@ public class LocationScene {
     }
 
     /**
-     * Attempts to raise markers vertically when they overlap.
-     * Needs work!
+     * Raises markers vertically when they overlap.
+     * Worked out on each refresh: markers within the overlap angle of a nearer marker
+     * are stacked above it, and stay there until the next refresh.
      *
      * @param offsetOverlapping
      */
     public void setOffsetOverlapping(boolean offsetOverlapping) {
         this.offsetOverlapping = offsetOverlapping;
+        anchorsNeedRefresh = true;
     }
 
 
@@ -201,158 +730,696 @@ public class LocationScene {
     public void setRemoveOverlapping(boolean removeOverlapping) {
         this.removeOverlapping = removeOverlapping;
 
-//        for (LocationMarker mLocationMarker : mLocationMarkers) {
-//            LocationNode anchorNode = mLocationMarker.anchorNode;
-//            if (anchorNode != null) {
-//                anchorNode.setEnabled(true);
-//            }
-//        }
+        if (!removeOverlapping) {
+            for (int i = 0; i < activeMarkers.size(); i++) {
+                LocationNode anchorNode = activeMarkers.get(i).anchorNode;
+                if (anchorNode != null && !anchorNode.isEnabled()) {
+                    anchorNode.setEnabled(true);
+                }
+            }
+        }
+    }
+
+    /**
+     * How close together markers can appear before the farthest is removed.
+     *
+     * @return - degrees
+     */
+    public float getOverlapAngle() {
+        return occlusionBins.getOverlapDegrees();
     }
 
-    public void processFrame(Frame frame) {
-        refreshAnchorsIfRequired(frame);
+    /**
+     * How close together markers can appear before the farthest is removed,
+     * when setRemoveOverlapping is on, or stacked above the nearer one when setOffsetOverlapping is on.
+     *
+     * @param overlapAngle - degrees, 12 by default
+     */
+    public void setOverlapAngle(float overlapAngle) {
+        occlusionBins = new OcclusionBins(overlapAngle);
     }
 
     /**
-     * Force anchors to be re-calculated
+     * The camera as of the last processFrame, shared by every LocationNode.
      */
-    public void refreshAnchors() {
-        anchorsNeedRefresh = true;
+    public CameraSnapshot getCameraSnapshot() {
+        return cameraSnapshot;
     }
 
-    private void refreshAnchorsIfRequired(Frame frame) {
-        if (!anchorsNeedRefresh) {
+    public void processFrame(Frame frame) {
+        cameraSnapshot.update(frame.getCamera());
+        if (useVisualInertialFusion)
+            updateFusion(frame);
+        else if (usePredictedLocation)
+            updatePredictedLocation();
+        refreshAnchorsIfRequired(frame);
+        updateMarkerDistances();
+        if (cullingEnabled)
+            cullMarkers();
+        if (removeOverlapping)
+            removeOverlappingMarkers();
+        if (useCentralUpdates)
+            updateMarkers();
+    }
+
+    /**
+     * Feeds new fixes, the compass heading and the camera's movement into the fused position.
+     */
+    private void updateFusion(Frame frame) {
+        if (deviceLocation == null)
             return;
+
+        Location location = deviceLocation.currentBestLocation;
+        int locationVersion = deviceLocation.getLocationVersion();
+        if (location != null && locationVersion != fusedLocationVersion) {
+            visualInertialFusion.updateFix(location.getLatitude(), location.getLongitude(),
+                    location.getAccuracy());
+            fusedLocationVersion = locationVersion;
         }
 
-        anchorsNeedRefresh = false;
-        Log.i(TAG, "Refreshing anchors...");
+        if (frame.getCamera().getTrackingState() != TrackingState.TRACKING) {
+            visualInertialFusion.lostTracking();
+            return;
+        }
+        Vector3 forward = cameraSnapshot.getForward();
+        Vector3 position = cameraSnapshot.getPosition();
+        visualInertialFusion.updateHeading(deviceOrientation.getOrientation(), forward.x, forward.z);
+        visualInertialFusion.updatePose(position.x, position.z);
+    }
 
-        if (deviceLocation == null || deviceLocation.currentBestLocation == null) {
-            Log.i(TAG, "Location not yet established.");
+    /**
+     * Moves the predicted position on to now. It only counts as moved once it has gone
+     * PREDICTION_VERSION_DISTANCE, so marker distances aren't redone every frame.
+     */
+    private void updatePredictedLocation() {
+        if (deviceLocation == null
+                || !deviceLocation.predictLocation(SystemClock.elapsedRealtime(), predictedLocation)) {
+            hasPredictedLocation = false;
             return;
         }
 
-        for (int i = 0; i < mLocationMarkers.size(); i++) {
-            try {
-                final LocationMarker marker = mLocationMarkers.get(i);
-                int markerDistance = (int) Math.round(
-                        LocationUtils.distance(
-                                marker.latitude,
-                                deviceLocation.currentBestLocation.getLatitude(),
-                                marker.longitude,
-                                deviceLocation.currentBestLocation.getLongitude(),
-                                0,
-                                0)
-                );
-
-                if (markerDistance > marker.getOnlyRenderWhenWithin()) {
-                    // Don't render if this has been set and we are too far away.
-                    Log.i(TAG, "Not rendering. Marker distance: " + markerDistance
-                            + " Max render distance: " + marker.getOnlyRenderWhenWithin());
-                    continue;
-                }
+        if (!hasPredictedLocation || LocationUtils.distance(predictedLatitude, predictedLocation[0],
+                predictedLongitude, predictedLocation[1], 0, 0) >= PREDICTION_VERSION_DISTANCE) {
+            predictedLatitude = predictedLocation[0];
+            predictedLongitude = predictedLocation[1];
+            predictedLocationVersion++;
+            hasPredictedLocation = true;
+        }
+    }
 
-                float bearing = (float) LocationUtils.bearing(
-                        deviceLocation.currentBestLocation.getLatitude(),
-                        deviceLocation.currentBestLocation.getLongitude(),
-                        marker.latitude,
-                        marker.longitude);
+    private boolean isUsingFusedLocation() {
+        return useVisualInertialFusion && visualInertialFusion.isInitialised();
+    }
 
-                float markerBearing = bearing - deviceOrientation.getOrientation();
+    private boolean isPredictingLocation() {
+        return usePredictedLocation && !useVisualInertialFusion && hasPredictedLocation;
+    }
 
-                // Bearing adjustment can be set if you are trying to
-                // correct the heading of north - setBearingAdjustment(10)
-                markerBearing = markerBearing + bearingAdjustment + 360;
-                markerBearing = markerBearing % 360;
+    /**
+     * Where distances and bearings to markers are worked out from
+     */
+    private double deviceLatitude() {
+        if (isUsingFusedLocation())
+            return visualInertialFusion.getLatitude();
+        if (isPredictingLocation())
+            return predictedLatitude;
+        return deviceLocation.currentBestLocation.getLatitude();
+    }
 
-                double rotation = Math.floor(markerBearing);
+    private double deviceLongitude() {
+        if (isUsingFusedLocation())
+            return visualInertialFusion.getLongitude();
+        if (isPredictingLocation())
+            return predictedLongitude;
+        return deviceLocation.currentBestLocation.getLongitude();
+    }
 
-                Log.d(TAG, "currentDegree " + deviceOrientation.getOrientation()
-                        + " bearing " + bearing + " markerBearing " + markerBearing
-                        + " rotation " + rotation + " distance " + markerDistance);
+    /**
+     * Central updates: runs LocationNode.update for every visible marker.
+     * Markers whose nodes have been released since are dropped from the list here.
+     */
+    private void updateMarkers() {
+        long start = System.nanoTime();
+        int i = 0;
+        while (i < updateCount) {
+            LocationMarker marker = updateMarkers[i];
+            LocationNode anchorNode = marker.anchorNode;
+            if (anchorNode == null) {
+                removeFromUpdates(marker);
+                continue;
+            }
+            if (anchorNode.isEnabled() && !anchorNode.isCulled()) {
+                try {
+                    anchorNode.update();
+                } catch (Exception e) {
+                    Log.e(TAG, "Couldn't update marker", e);
+                }
+            }
+            i++;
+        }
+        markerUpdateTime = (System.nanoTime() - start) / 1000000F;
+    }
 
-                // When pointing device upwards (camera towards sky)
-                // the compass bearing can flip.
-                // In experiments this seems to happen at pitch~=-25
-                //if (deviceOrientation.pitch > -25)
-                //rotation = rotation * Math.PI / 180;
+    /**
+     * Marks placed markers outside the view cone as culled, and tells those crossing its edge.
+     */
+    private void cullMarkers() {
+        for (int i = 0; i < updateCount; i++) {
+            LocationMarker marker = updateMarkers[i];
+            LocationNode anchorNode = marker.anchorNode;
+            if (anchorNode == null)
+                continue;
+
+            float[] nodeTransform = marker.node.getWorldModelMatrix().data;
+            boolean culled = !cameraSnapshot.isInView(
+                    nodeTransform[12], nodeTransform[13], nodeTransform[14]);
+            if (culled != anchorNode.isCulled())
+                setCulled(anchorNode, culled);
+        }
+    }
 
-                int renderDistance = markerDistance;
+    private void setCulled(LocationNode anchorNode, boolean culled) {
+        anchorNode.setCulled(culled);
+        if (!culled)
+            anchorNode.markUpdateDue();
+        LocationNodeViewChanged viewEvent = anchorNode.getViewEvent();
+        if (viewEvent != null) {
+            if (culled)
+                viewEvent.onExitView(anchorNode);
+            else
+                viewEvent.onEnterView(anchorNode);
+        }
+    }
 
-                // Limit the distance of the Anchor within the scene.
-                // Prevents rendering issues.
-                if (renderDistance > distanceLimit)
-                    renderDistance = distanceLimit;
+    private void addToUpdates(LocationMarker marker) {
+        if (marker.updateSlot >= 0)
+            return;
+        if (updateCount == updateMarkers.length)
+            updateMarkers = Arrays.copyOf(updateMarkers, updateCount * 2);
+        marker.updateSlot = updateCount;
+        updateMarkers[updateCount++] = marker;
+    }
 
-                // Adjustment to add markers on horizon, instead of just directly in front of camera
-                double heightAdjustment = 0;
-                // Math.round(renderDistance * (Math.tan(Math.toRadians(deviceOrientation.pitch)))) - 1.5F;
+    /**
+     * Swaps the last marker into [marker]'s slot, keeping the array dense.
+     */
+    private void removeFromUpdates(LocationMarker marker) {
+        int slot = marker.updateSlot;
+        if (slot < 0)
+            return;
+        LocationMarker last = updateMarkers[--updateCount];
+        updateMarkers[slot] = last;
+        last.updateSlot = slot;
+        updateMarkers[updateCount] = null;
+        marker.updateSlot = -1;
+    }
 
-                // Raise distant markers for better illusion of distance
-                // Hacky - but it works as a temporary measure
-                int cappedRealDistance = markerDistance > 500 ? 500 : markerDistance;
-                if (renderDistance != markerDistance)
-                    heightAdjustment += 0.005F * (cappedRealDistance - renderDistance);
+    /**
+     * Hides markers behind nearer ones, in one pass over every active marker in view.
+     * Only nodes whose visibility changes are touched.
+     */
+    private void removeOverlappingMarkers() {
+        Vector3 cameraPosition = cameraSnapshot.getPosition();
+        occlusionBins.clear();
+        for (int i = 0; i < activeMarkers.size(); i++) {
+            LocationMarker marker = activeMarkers.get(i);
+            if (marker.anchorNode != null && !marker.anchorNode.isCulled()) {
+                float[] nodeTransform = marker.node.getWorldModelMatrix().data;
+                occlusionBins.add(nodeTransform[12] - cameraPosition.x,
+                        nodeTransform[13] - cameraPosition.y,
+                        nodeTransform[14] - cameraPosition.z);
+            }
+        }
 
-                float z = -Math.min(renderDistance, RENDER_DISTANCE);
+        occlusionBins.resolve();
+
+        int index = 0;
+        for (int i = 0; i < activeMarkers.size(); i++) {
+            LocationNode anchorNode = activeMarkers.get(i).anchorNode;
+            if (anchorNode != null && !anchorNode.isCulled()) {
+                boolean visible = occlusionBins.isVisible(index++);
+                if (anchorNode.isEnabled() != visible) {
+                    anchorNode.setEnabled(visible);
+                    if (visible)
+                        anchorNode.markUpdateDue();
+                }
+            }
+        }
+    }
 
-                double rotationRadian = Math.toRadians(rotation);
+    /**
+     * Force anchors to be re-calculated
+     */
+    public void refreshAnchors() {
+        anchorsNeedRefresh = true;
+    }
 
-                float zRotated = (float) (z * Math.cos(rotationRadian));
-                float xRotated = (float) -(z * Math.sin(rotationRadian));
+    private void refreshAnchorsIfRequired(Frame frame) {
+        if (anchorsNeedRefresh && computingPlacements == null) {
+            anchorsNeedRefresh = false;
+            Log.i(TAG, "Refreshing anchors...");
+
+            if (deviceLocation == null || deviceLocation.currentBestLocation == null) {
+                Log.i(TAG, "Location not yet established.");
+            } else {
+                computePlacements(frame);
+            }
+        }
+
+        // Placements computed in the background are picked up once the last lot are placed
+        if (applyingPlacements == null) {
+            PlacementBuffer ready = readyPlacements.getAndSet(null);
+            if (ready != null) {
+                computingPlacements = null;
+                if (ready.failed) {
+                    Log.e(TAG, "Couldn't compute marker placements");
+                    ready.release();
+                } else {
+                    startRefresh(ready);
+                }
+            }
+        }
+
+        if (applyingPlacements != null)
+            continueRefresh(frame);
+    }
+
+    /**
+     * Snapshots the device and the markers near it, and works out where they
+     * should go on the compute executor.
+     */
+    private void computePlacements(Frame frame) {
+        PlacementBuffer buffer = placementBuffers[0] != applyingPlacements
+                ? placementBuffers[0] : placementBuffers[1];
+        buffer.fill(mLocationMarkers, deviceLatitude(), deviceLongitude(), renderRadius);
+        buffer.cameraPose = frame.getCamera().getDisplayOrientedPose();
+        buffer.placements.setView(deviceOrientation.getOrientation(), bearingAdjustment,
+                distanceLimit, RENDER_DISTANCE, approximateWithin());
+        buffer.placements.setStacking(offsetOverlapping ? getOverlapAngle() : 0, STACK_SPACING);
+        buffer.placements.setBudget(maxActiveMarkers);
+        buffer.placements.setClustering(clusterAngle, clusterDistance);
+        buffer.distanceVersion = distanceVersion();
+
+        computingPlacements = buffer;
+        if (computeExecutor == null) {
+            buffer.run();
+            return;
+        }
+        try {
+            computeExecutor.execute(buffer);
+        } catch (RejectedExecutionException e) {
+            buffer.run();
+        }
+    }
 
-                float y = frame.getCamera().getDisplayOrientedPose().ty() + (float) heightAdjustment;
+    /**
+     * Starts placing computed markers, nearest first, over the next frames.
+     */
+    private void startRefresh(PlacementBuffer buffer) {
+        refreshCount++;
+        if (debugEnabled)
+            Log.i(TAG, "Markers in range: " + buffer.placements.getCount()
+                    + " of " + mLocationMarkers.size());
+
+        applyingPlacements = buffer;
+        refreshTotal = buffer.placements.getCount();
+        refreshCursor = 0;
+        refreshFrames = 0;
+        refreshReanchored = 0;
+    }
 
-                if (marker.anchorNode != null && marker.anchorNode.getAnchor() != null) {
-                    marker.anchorNode.getAnchor().detach();
-                    marker.anchorNode.setAnchor(null);
-                    marker.anchorNode.setEnabled(false);
-                    marker.anchorNode = null;
+    /**
+     * Places markers until this frame's share of the refresh budget is used up.
+     */
+    private void continueRefresh(Frame frame) {
+        long frameStart = System.nanoTime();
+        long budget = (long) (refreshFrameBudget * 1000000);
+        refreshFrames++;
+
+        MarkerPlacements placements = applyingPlacements.placements;
+        // Where the camera was when the placements were worked out, which may be frames ago
+        Pose cameraPose = applyingPlacements.cameraPose;
+        if (useRootAnchor)
+            updateRootAnchor(frame);
+        while (refreshCursor < refreshTotal) {
+            int i = refreshCursor++;
+            LocationMarker marker = applyingPlacements.markers[placements.getCandidate(i)];
+            // Skipped if part of a nearer marker's cluster, or removed since the snapshot was taken
+            if (placements.getClusterSize(i) == 0) {
+                marker.clusterSize = 0;
+            } else if (marker.isAttached()) {
+                try {
+                    if (placeMarker(cameraPose, marker, placements, i))
+                        refreshReanchored++;
+                } catch (Exception e) {
+                    Log.e(TAG, "Couldn't place marker", e);
                 }
+            }
 
-                // Don't immediately assign newly created anchor in-case of exceptions
-                Pose translation = Pose.makeTranslation(xRotated, y, zRotated);
-                Anchor newAnchor = mSession.createAnchor(
-                        frame.getCamera()
-                                .getDisplayOrientedPose()
-                                .compose(translation)
-                                .extractTranslation()
-                );
+            // Always place at least one marker per frame, so a refresh can't stall
+            if (budget > 0 && System.nanoTime() - frameStart > budget)
+                return;
+        }
+        finishRefresh();
+    }
 
+    private void finishRefresh() {
+        if (debugEnabled)
+            Log.i(TAG, "Re-anchored " + refreshReanchored + " of " + refreshTotal + " markers"
+                    + " over " + refreshFrames + " frames");
+
+        // Markers placed last time but not this time have gone out of range, or were removed
+        for (int i = 0; i < activeMarkers.size(); i++) {
+            LocationMarker marker = activeMarkers.get(i);
+            if (marker.placedRefresh != refreshCount) {
+                // Kept for when it comes back, unless the budget says the scene has too many nodes
+                if (maxActiveMarkers == Integer.MAX_VALUE)
+                    parkMarker(marker);
+                else
+                    releaseMarker(marker);
+            }
+        }
+        ArrayList<LocationMarker> previous = activeMarkers;
+        activeMarkers = placedMarkers;
+        placedMarkers = previous;
+        placedMarkers.clear();
+
+        // Every marker has its own anchor again
+        if (!useRootAnchor && rootAnchorNode != null) {
+            if (rootAnchorNode.getAnchor() != null)
+                rootAnchorNode.getAnchor().detach();
+            rootAnchorNode.setParent(null);
+            rootAnchorNode = null;
+        }
+
+        lastRefreshFrameCount = refreshFrames;
+        applyingPlacements.release();
+        applyingPlacements = null;
+    }
+
+    /**
+     * Makes sure the root anchor exists, and reads its pose for this frame.
+     * If it has stopped tracking it's only replaced at the start of a refresh,
+     * since every marker is about to be placed against it again.
+     */
+    private void updateRootAnchor(Frame frame) {
+        if (rootAnchorNode == null || rootAnchorNode.getAnchor() == null || (refreshCursor == 0
+                && rootAnchorNode.getAnchor().getTrackingState() != TrackingState.TRACKING)) {
+            Anchor newAnchor = mSession.createAnchor(
+                    frame.getCamera().getDisplayOrientedPose().extractTranslation());
+            if (rootAnchorNode == null) {
+                rootAnchorNode = new AnchorNode();
+                rootAnchorNode.setParent(mArSceneView.getScene());
+            }
+            Anchor oldAnchor = rootAnchorNode.getAnchor();
+            rootAnchorNode.setAnchor(newAnchor);
+            if (oldAnchor != null)
+                oldAnchor.detach();
+        }
+
+        Pose rootPose = rootAnchorNode.getAnchor().getPose();
+        rootPose.getTranslation(rootTranslation, 0);
+        rootPose.getRotationQuaternion(rootRotation, 0);
+    }
+
+    /**
+     * Positions a marker's anchor from its computed placement, re-anchoring if it has moved.
+     *
+     * @return - true if the marker was given a new anchor
+     */
+    private boolean placeMarker(Pose cameraPose, LocationMarker marker, MarkerPlacements placements, int i) {
+        boolean reanchored = false;
+        double distance = placements.getDistance(i);
+        float bearing = (float) placements.getBearing(i);
+
+        if (debugEnabled)
+            Log.d(TAG, "bearing " + bearing + " distance " + distance);
+
+        // Where the anchor should be, in world space
+        placement[0] = placements.getX(i);
+        placement[1] = cameraPose.ty() + placements.getHeightAdjustment(i);
+        placement[2] = placements.getZ(i);
+        cameraPose.transformPoint(placement, 0, placement, 0);
+
+        if (useRootAnchor) {
+            placeUnderRoot(marker);
+        } else if (needsNewAnchor(marker, bearing)) {
+            // Don't immediately assign newly created anchor in-case of exceptions
+            Anchor newAnchor = mSession.createAnchor(
+                    Pose.makeTranslation(placement[0], placement[1], placement[2]));
+
+            if (marker.anchorNode == null) {
                 marker.anchorNode = new LocationNode(newAnchor, marker, this);
                 marker.anchorNode.setScalingMode(LocationMarker.ScalingMode.NO_SCALING);
+                // Out of view until culling finds otherwise, so it gets onEnterView
+                marker.anchorNode.setCulled(cullingEnabled);
 
                 marker.anchorNode.setParent(mArSceneView.getScene());
-                marker.anchorNode.addChild(mLocationMarkers.get(i).node);
+                marker.anchorNode.addChild(marker.node);
                 marker.node.setLocalPosition(Vector3.zero());
-
-                if (marker.getRenderEvent() != null) {
-                    marker.anchorNode.setRenderEvent(marker.getRenderEvent());
+            } else {
+                // Reuse the node, whether it was parked or is being moved
+                Anchor oldAnchor = marker.anchorNode.getAnchor();
+                // Back from the root anchor
+                if (marker.anchorNode.getParent() != null)
+                    marker.anchorNode.setParent(mArSceneView.getScene());
+                marker.anchorNode.setAnchor(newAnchor);
+                if (oldAnchor != null) {
+                    oldAnchor.detach();
+                } else {
+                    marker.anchorNode.setEnabled(true);
                 }
+            }
+            marker.anchorNode.setAnchorBearing(bearing);
+            reanchored = true;
+        }
 
-                marker.anchorNode.setScaleModifier(marker.getScaleModifier());
-                marker.anchorNode.setScalingMode(marker.getScalingMode());
-                marker.anchorNode.setGradualScalingMaxScale(marker.getGradualScalingMaxScale());
-                marker.anchorNode.setGradualScalingMinScale(marker.getGradualScalingMinScale());
+        if (marker.getRenderEvent() != null) {
+            marker.anchorNode.setRenderEvent(marker.getRenderEvent());
+        }
+        marker.anchorNode.setViewEvent(marker.getViewEvent());
+        updateCluster(marker, placements.getClusterSize(i));
+
+        marker.anchorNode.setScaleModifier(marker.getScaleModifier());
+        marker.anchorNode.setScalingMode(marker.getScalingMode());
+        marker.anchorNode.setGradualScalingMaxScale(marker.getGradualScalingMaxScale());
+        marker.anchorNode.setGradualScalingMinScale(marker.getGradualScalingMinScale());
+
+        // Locations further than RENDER_DISTANCE are remapped to be rendered closer,
+        // with their height scaled to match
+        marker.anchorNode.setHeight(placements.getRenderHeight(i) + placements.getStackOffset(i));
+
+        marker.anchorNode.setDistance((int) Math.ceil(distance), bearing,
+                applyingPlacements.distanceVersion);
+        marker.updateLevelOfDetail(marker.anchorNode.getDistance(), detailHysteresis);
+        marker.anchorNode.markUpdateDue();
+        if (minimalRefreshing)
+            marker.anchorNode.scaleAndRotate();
+
+        marker.placedRefresh = refreshCount;
+        placedMarkers.add(marker);
+        addToUpdates(marker);
+        return reanchored;
+    }
 
-                // Locations further than RENDER_DISTANCE are remapped to be rendered closer.
-                // => height differential also has to ensure the remap is correct
-                if (markerDistance > RENDER_DISTANCE) {
-                    float renderHeight = RENDER_DISTANCE * marker.getHeight() / markerDistance;
-                    marker.anchorNode.setHeight(renderHeight);
-                } else {
-                    marker.anchorNode.setHeight(marker.getHeight());
-                }
 
-                if (minimalRefreshing)
-                    marker.anchorNode.scaleAndRotate();
-            } catch (Exception e) {
-                e.printStackTrace();
+    /**
+     * Which device location and marker positions distances are worked out from.
+     * LocationNodes stamped with an older version need theirs worked out again.
+     */
+    private long distanceVersion() {
+        // Which position source is in the top two bits, so versions from different sources never match
+        int locationVersion;
+        if (isUsingFusedLocation())
+            locationVersion = FUSED_VERSION | (visualInertialFusion.getVersion() & SOURCE_VERSION_MASK);
+        else if (isPredictingLocation())
+            locationVersion = PREDICTED_VERSION | (predictedLocationVersion & SOURCE_VERSION_MASK);
+        else
+            locationVersion = deviceLocation.getLocationVersion() & SOURCE_VERSION_MASK;
+        return ((long) locationVersion << 32)
+                | (mLocationMarkers.getStore().getPositionVersion() & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Works out the distance and bearing to placed markers whose values are stale, in one pass,
+     * for LocationNode.scaleAndRotate to use. Until the device position moves this does nothing.
+     */
+    private void updateMarkerDistances() {
+        if (deviceLocation == null || deviceLocation.currentBestLocation == null)
+            return;
+
+        long version = distanceVersion();
+        MarkerStore store = mLocationMarkers.getStore();
+        int count = 0;
+        if (activeIndices.length < activeMarkers.size()) {
+            activeIndices = new int[activeMarkers.size() * 2];
+            activeDistances = new double[activeMarkers.size() * 2];
+            activeBearings = new double[activeMarkers.size() * 2];
+        }
+        for (int i = 0; i < activeMarkers.size(); i++) {
+            LocationMarker marker = activeMarkers.get(i);
+            if (isDistanceStale(marker, version))
+                activeIndices[count++] = store.indexOf(marker.getId());
+        }
+        if (count == 0)
+            return;
+
+        LocationUtils.distancesAndBearings(deviceLatitude(), deviceLongitude(),
+                store.latitudes(), store.longitudes(), activeIndices, count,
+                activeDistances, activeBearings, approximateWithin());
+
+        count = 0;
+        for (int i = 0; i < activeMarkers.size(); i++) {
+            LocationMarker marker = activeMarkers.get(i);
+            if (isDistanceStale(marker, version)) {
+                marker.anchorNode.setDistance((int) Math.ceil(activeDistances[count]),
+                        (float) activeBearings[count], version);
+                marker.updateLevelOfDetail(marker.anchorNode.getDistance(), detailHysteresis);
+                marker.anchorNode.markUpdateDue();
+                count++;
             }
         }
-        //this is bad, you should feel bad
-        System.gc();
+    }
+
+    private boolean isDistanceStale(LocationMarker marker, long version) {
+        return marker.anchorNode != null && marker.isAttached()
+                && marker.anchorNode.getDistanceVersion() != version;
+    }
+
+    /**
+     * Single root anchor mode: positions the marker's node at [placement], relative to the root.
+     */
+    private void placeUnderRoot(LocationMarker marker) {
+        boolean wasActive = marker.placedRefresh == refreshCount - 1;
+        if (marker.anchorNode == null) {
+            marker.anchorNode = new LocationNode(null, marker, this);
+            marker.anchorNode.setScalingMode(LocationMarker.ScalingMode.NO_SCALING);
+            marker.anchorNode.setCulled(cullingEnabled);
+
+            marker.anchorNode.setParent(rootAnchorNode);
+            marker.anchorNode.addChild(marker.node);
+            marker.node.setLocalPosition(Vector3.zero());
+        } else {
+            // Had its own anchor before the mode was switched on
+            Anchor ownAnchor = marker.anchorNode.getAnchor();
+            if (ownAnchor != null) {
+                marker.anchorNode.setAnchor(null);
+                ownAnchor.detach();
+            }
+            if (marker.anchorNode.getParent() != rootAnchorNode)
+                marker.anchorNode.setParent(rootAnchorNode);
+            if (!wasActive)
+                marker.anchorNode.setEnabled(true);
+        }
+
+        toRootSpace(placement);
+        localPosition.set(placement[0], placement[1], placement[2]);
+        marker.anchorNode.setLocalPosition(localPosition);
+    }
+
+    /**
+     * World space -> root anchor space, in place.
+     */
+    private void toRootSpace(float[] point) {
+        float px = point[0] - rootTranslation[0];
+        float py = point[1] - rootTranslation[1];
+        float pz = point[2] - rootTranslation[2];
+
+        // Rotate by the inverse (conjugate) of the root's rotation
+        float qx = -rootRotation[0];
+        float qy = -rootRotation[1];
+        float qz = -rootRotation[2];
+        float qw = rootRotation[3];
+        float tx = 2 * (qy * pz - qz * py);
+        float ty = 2 * (qz * px - qx * pz);
+        float tz = 2 * (qx * py - qy * px);
+        point[0] = px + qw * tx + (qy * tz - qz * ty);
+        point[1] = py + qw * ty + (qz * tx - qx * tz);
+        point[2] = pz + qw * tz + (qx * ty - qy * tx);
+    }
+
+    /**
+     * Whether the marker's anchor is missing, or too far from [placement] / [bearing] to keep.
+     */
+    private boolean needsNewAnchor(LocationMarker marker, float bearing) {
+        if (marker.anchorNode == null || marker.anchorNode.getAnchor() == null)
+            return true;
+        if (reanchorDistanceThreshold <= 0 || reanchorBearingThreshold <= 0)
+            return true;
+
+        Anchor anchor = marker.anchorNode.getAnchor();
+        if (anchor.getTrackingState() != TrackingState.TRACKING)
+            return true;
+
+        float bearingChange = Math.abs(bearing - marker.anchorNode.getAnchorBearing()) % 360;
+        if (bearingChange > 180)
+            bearingChange = 360 - bearingChange;
+        if (bearingChange > reanchorBearingThreshold)
+            return true;
+
+        anchor.getPose().getTranslation(anchorPosition, 0);
+        float dx = placement[0] - anchorPosition[0];
+        float dy = placement[1] - anchorPosition[1];
+        float dz = placement[2] - anchorPosition[2];
+        return dx * dx + dy * dy + dz * dz > reanchorDistanceThreshold * reanchorDistanceThreshold;
+    }
+
+    /**
+     * Drops the marker's anchor when it goes out of range, keeping its node
+     * disabled in the scene to be reused when it comes back.
+     */
+    private void parkMarker(LocationMarker marker) {
+        if (marker.anchorNode != null) {
+            Anchor anchor = marker.anchorNode.getAnchor();
+            if (anchor != null) {
+                anchor.detach();
+                marker.anchorNode.setAnchor(null);
+            }
+            marker.anchorNode.setEnabled(false);
+            // Gone from view, as far as anyone watching is concerned
+            if (cullingEnabled && !marker.anchorNode.isCulled())
+                setCulled(marker.anchorNode, true);
+        }
+        removeFromUpdates(marker);
+    }
+
+    /**
+     * Shows the cluster node in place of the marker's own node if it's standing in for a cluster,
+     * or puts its own node back if not.
+     */
+    private void updateCluster(LocationMarker marker, int size) {
+        int previousSize = marker.clusterSize;
+        marker.clusterSize = size;
+        boolean wasClustered = marker.clusterNode != null && marker.clusterNode.isEnabled();
+        boolean clustered = size > 1 && clusterRenderer != null;
+
+        if (clustered) {
+            boolean created = false;
+            if (marker.clusterNode == null) {
+                marker.clusterNode = clusterRenderer.createClusterNode(marker);
+                created = true;
+            }
+            if (marker.clusterNode.getParent() != marker.anchorNode) {
+                marker.anchorNode.addChild(marker.clusterNode);
+                marker.clusterNode.setLocalPosition(Vector3.zero());
+            }
+            if (!wasClustered)
+                marker.clusterNode.setEnabled(true);
+            if (created || size != previousSize)
+                clusterRenderer.onClusterChanged(marker.clusterNode, size);
+        } else if (wasClustered) {
+            marker.clusterNode.setEnabled(false);
+        }
+        if (clustered != wasClustered)
+            marker.node.setEnabled(!clustered);
+    }
+
+    /**
+     * Takes a marker's anchor and node out of the scene altogether.
+     */
+    private void releaseMarker(LocationMarker marker) {
+        parkMarker(marker);
+        marker.releaseAnchorNode();
     }
 
     /**
@@ -0,0 +1,71 @@
+package uk.co.appoly.arcorelocation;
+
+import com.google.ar.core.Pose;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import uk.co.appoly.arcorelocation.utils.MarkerPlacements;
+
+/**
+ * One refresh: a snapshot of the markers near the device, and where to place them.
+ * <p>
+ * Filled on the frame thread, computed when run (usually on a background thread),
+ * then handed back through [ready]. LocationScene keeps two, so the next refresh can be
+ * computed while the last one is still being applied.
+ */
+class PlacementBuffer implements Runnable {
+
+    final MarkerPlacements placements = new MarkerPlacements();
+    // Candidate -> marker. Only used on the frame thread
+    LocationMarker[] markers = new LocationMarker[16];
+    // Set if compute() threw, the refresh is dropped
+    boolean failed = false;
+    // LocationScene's distance version when the snapshot was taken
+    long distanceVersion;
+    // The camera when the snapshot was taken. Placements are relative to it and the compass
+    // heading of the same moment, so they're turned into world space by this, not a later frame's
+    Pose cameraPose;
+
+    private final AtomicReference<PlacementBuffer> ready;
+    private int candidateCount = 0;
+
+    PlacementBuffer(AtomicReference<PlacementBuffer> ready) {
+        this.ready = ready;
+    }
+
+    /**
+     * Takes a snapshot of the markers that could be within [radius] of the device.
+     */
+    void fill(LocationMarkerList markerList, double latitude, double longitude, double radius) {
+        candidateCount = placements.collect(markerList.getStore(), latitude, longitude, radius);
+        if (markers.length < candidateCount)
+            markers = new LocationMarker[Math.max(candidateCount, markers.length * 2)];
+        for (int i = 0; i < candidateCount; i++) {
+            LocationMarker marker = markerList.getById(placements.getCandidateId(i));
+            markers[i] = marker;
+            placements.setCandidateHeight(i, marker.getHeight());
+            placements.setCandidatePriority(i, marker.getPriority());
+        }
+        failed = false;
+    }
+
+    /**
+     * Drops references to the snapshot's markers once they've been placed.
+     */
+    void release() {
+        Arrays.fill(markers, 0, candidateCount, null);
+        candidateCount = 0;
+        cameraPose = null;
+    }
+
+    @Override
+    public void run() {
+        try {
+            placements.compute();
+        } catch (RuntimeException e) {
+            failed = true;
+        }
+        ready.set(this);
+    }
+}
@@ -0,0 +1,152 @@
+package uk.co.appoly.arcorelocation.rendering;
+
+import android.opengl.Matrix;
+
+import com.google.ar.core.Camera;
+import com.google.ar.sceneform.math.Vector3;
+
+/**
+ * The camera for the current frame, captured once by LocationScene.processFrame
+ * so every LocationNode can read it without asking Sceneform for new vectors.
+ * <p>
+ * Vectors and matrices returned here are reused every frame - read them, don't keep or modify them.
+ */
+public class CameraSnapshot {
+
+    // Sceneform's default clip planes
+    private static final float NEAR_PLANE = 0.01F;
+    private static final float FAR_PLANE = 30F;
+
+    private final float[] viewMatrix = new float[16];
+    private final float[] projectionMatrix = new float[16];
+    private final float[] viewProjectionMatrix = new float[16];
+
+    private final Vector3 position = new Vector3();
+    private final Vector3 left = new Vector3();
+    private final Vector3 up = new Vector3();
+    private final Vector3 forward = new Vector3();
+    private long frameCount = 0;
+    // View cone: half the diagonal field of view plus a margin, as a cosine
+    private float viewMargin = 10F;
+    private float viewConeAngle;
+    private float viewConeCos;
+
+    /**
+     * Captures the camera for this frame.
+     */
+    public void update(Camera camera) {
+        camera.getViewMatrix(viewMatrix, 0);
+        camera.getProjectionMatrix(projectionMatrix, 0, NEAR_PLANE, FAR_PLANE);
+        Matrix.multiplyMM(viewProjectionMatrix, 0, projectionMatrix, 0, viewMatrix, 0);
+
+        // The view matrix is the inverse of the camera's pose: its rows are
+        // the camera's axes in world space, and -R^T * t is its position
+        float[] v = viewMatrix;
+        position.set(
+                -(v[0] * v[12] + v[1] * v[13] + v[2] * v[14]),
+                -(v[4] * v[12] + v[5] * v[13] + v[6] * v[14]),
+                -(v[8] * v[12] + v[9] * v[13] + v[10] * v[14]));
+        left.set(-v[0], -v[4], -v[8]);
+        up.set(v[1], v[5], v[9]);
+        forward.set(-v[2], -v[6], -v[10]);
+
+        // The projection's scale factors are cot(fov / 2), horizontally and vertically
+        float tanX = 1 / projectionMatrix[0];
+        float tanY = 1 / projectionMatrix[5];
+        viewConeAngle = (float) Math.toDegrees(Math.atan(Math.sqrt(tanX * tanX + tanY * tanY)));
+        float limit = viewConeAngle + viewMargin;
+        viewConeCos = limit >= 180 ? -2 : (float) Math.cos(Math.toRadians(limit));
+        frameCount++;
+    }
+
+    /**
+     * Camera position in world space
+     */
+    public Vector3 getPosition() {
+        return position;
+    }
+
+    /**
+     * Unit vector to the camera's left, in world space
+     */
+    public Vector3 getLeft() {
+        return left;
+    }
+
+    /**
+     * Unit vector up from the camera, in world space
+     */
+    public Vector3 getUp() {
+        return up;
+    }
+
+    /**
+     * Unit vector the camera is looking along, in world space
+     */
+    public Vector3 getForward() {
+        return forward;
+    }
+
+    /**
+     * Angle from the centre of the view to its corners.
+     *
+     * @return - degrees
+     */
+    public float getViewConeAngle() {
+        return viewConeAngle;
+    }
+
+    public float getViewMargin() {
+        return viewMargin;
+    }
+
+    /**
+     * How far outside the view isInView still counts as in view. Takes effect next update.
+     *
+     * @param viewMargin - degrees
+     */
+    public void setViewMargin(float viewMargin) {
+        this.viewMargin = viewMargin;
+    }
+
+    /**
+     * Whether a world space point is inside the view cone: the cone around the camera's
+     * forward direction that covers the whole screen, widened by the margin.
+     */
+    public boolean isInView(float x, float y, float z) {
+        float dx = x - position.x;
+        float dy = y - position.y;
+        float dz = z - position.z;
+        float along = dx * forward.x + dy * forward.y + dz * forward.z;
+        float lengthSquared = dx * dx + dy * dy + dz * dz;
+        // along >= |d| * cos, without the square root
+        if (viewConeCos >= 0)
+            return along >= 0 && along * along >= lengthSquared * viewConeCos * viewConeCos;
+        return along >= 0 || along * along <= lengthSquared * viewConeCos * viewConeCos;
+    }
+
+    /**
+     * Column-major, as android.opengl.Matrix uses
+     */
+    public float[] getViewMatrix() {
+        return viewMatrix;
+    }
+
+    public float[] getProjectionMatrix() {
+        return projectionMatrix;
+    }
+
+    /**
+     * Projection * view, world space -> clip space
+     */
+    public float[] getViewProjectionMatrix() {
+        return viewProjectionMatrix;
+    }
+
+    /**
+     * Number of frames captured, 0 until the first
+     */
+    public long getFrameCount() {
+        return frameCount;
+    }
+}
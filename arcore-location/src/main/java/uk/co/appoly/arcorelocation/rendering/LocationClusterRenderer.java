@@ -0,0 +1,20 @@
+package uk.co.appoly.arcorelocation.rendering;
+
+import com.google.ar.sceneform.Node;
+
+import uk.co.appoly.arcorelocation.LocationMarker;
+
+/**
+ * Makes the node shown in place of a cluster of distant markers, see LocationScene.setClustering.
+ */
+public interface LocationClusterRenderer {
+    /**
+     * Called the first time [marker] is placed for a whole cluster. The node is kept and reused.
+     */
+    Node createClusterNode(LocationMarker marker);
+
+    /**
+     * Called when a cluster node is shown for a different number of markers, e.g. to update its label.
+     */
+    void onClusterChanged(Node clusterNode, int size);
+}
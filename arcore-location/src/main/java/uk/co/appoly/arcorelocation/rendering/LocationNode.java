@@ -3,17 +3,15 @@ package uk.co.appoly.arcorelocation.rendering;
 import com.google.ar.core.Anchor;
 import com.google.ar.sceneform.AnchorNode;
 import com.google.ar.sceneform.FrameTime;
-import com.google.ar.sceneform.HitTestResult;
 import com.google.ar.sceneform.Node;
-import com.google.ar.sceneform.collision.Ray;
 import com.google.ar.sceneform.math.Quaternion;
 import com.google.ar.sceneform.math.Vector3;
 
-import java.util.ArrayList;
+import java.util.List;
 
 import uk.co.appoly.arcorelocation.LocationMarker;
 import uk.co.appoly.arcorelocation.LocationScene;
-import uk.co.appoly.arcorelocation.utils.LocationUtils;
+import uk.co.appoly.arcorelocation.utils.QuaternionUtils;
 
 public class LocationNode extends AnchorNode {
 
@@ -21,8 +19,20 @@ public class LocationNode extends AnchorNode {
 
     private LocationMarker locationMarker;
     private LocationNodeRender renderEvent;
+    private LocationNodeViewChanged viewEvent;
+    // Outside the camera's view, so per-frame work is skipped
+    private boolean culled = false;
+    // Frame and camera (position, forward) of the last update, for UpdateTiers. -1 when due
+    long lastUpdateFrame = -1;
+    final float[] lastUpdateCamera = new float[6];
     private int distance;
+    // Bearing from the device to the marker, from north
+    private float bearing;
+    // Which device location and marker positions distance and bearing were worked out from
+    private long distanceVersion = -1;
     private double distanceInAR;
+    // Bearing to the marker (from north) when the current anchor was placed
+    private float anchorBearing;
     private float scaleModifier = 1F;
     private float height = 0F;
     private float gradualScalingMinScale = 0.8F;
@@ -30,6 +40,10 @@ public class LocationNode extends AnchorNode {
 
     private LocationMarker.ScalingMode scalingMode = LocationMarker.ScalingMode.FIXED_SIZE_ON_SCREEN;
     private LocationScene locationScene;
+    // Reused every frame by scaleAndRotate
+    private final Vector3 scratchVector = new Vector3();
+    private final Quaternion scratchRotation = new Quaternion();
+    private final float[] scratchQuaternion = new float[4];
 
     public LocationNode(Anchor anchor, LocationMarker locationMarker, LocationScene locationScene) {
         super(anchor);
@@ -65,6 +79,32 @@ public class LocationNode extends AnchorNode {
         this.renderEvent = renderEvent;
     }
 
+    public LocationNodeViewChanged getViewEvent() {
+        return viewEvent;
+    }
+
+    public void setViewEvent(LocationNodeViewChanged viewEvent) {
+        this.viewEvent = viewEvent;
+    }
+
+    public boolean isCulled() {
+        return culled;
+    }
+
+    /**
+     * Set by LocationScene culling. Culled nodes skip update() until they're back in view.
+     */
+    public void setCulled(boolean culled) {
+        this.culled = culled;
+    }
+
+    /**
+     * Makes the next update() run, whatever its tier, e.g. after the node has been moved.
+     */
+    public void markUpdateDue() {
+        lastUpdateFrame = -1;
+    }
+
     public int getDistance() {
         return distance;
     }
@@ -75,12 +115,38 @@ public class LocationNode extends AnchorNode {
 
     public void setDistance(int distance) {
         this.distance = distance;
+        this.distanceVersion = -1;
+    }
+
+    /**
+     * @param version - see LocationScene, tells it when distance and bearing need working out again
+     */
+    public void setDistance(int distance, float bearing, long version) {
+        this.distance = distance;
+        this.bearing = bearing;
+        this.distanceVersion = version;
+    }
+
+    public float getBearing() {
+        return bearing;
+    }
+
+    public long getDistanceVersion() {
+        return distanceVersion;
     }
 
     public void setDistanceInAR(double distanceInAR) {
         this.distanceInAR = distanceInAR;
     }
 
+    public float getAnchorBearing() {
+        return anchorBearing;
+    }
+
+    public void setAnchorBearing(float anchorBearing) {
+        this.anchorBearing = anchorBearing;
+    }
+
     public LocationMarker.ScalingMode getScalingMode() {
         return scalingMode;
     }
@@ -91,6 +157,17 @@ public class LocationNode extends AnchorNode {
 
     @Override
     public void onUpdate(FrameTime frameTime) {
+        // LocationScene updates every marker in one loop instead
+        if (locationScene.isUsingCentralUpdates())
+            return;
+        update();
+    }
+
+    /**
+     * Per-frame work: distance in AR, scaling, rotation and the render event.
+     * Called from onUpdate, or by LocationScene when it updates markers centrally.
+     */
+    public void update() {
 
         // Typically, getScene() will never return null because onUpdate() is only called when the node
         // is in the scene.
@@ -98,50 +175,31 @@ public class LocationNode extends AnchorNode {
         // different thread during onUpdate, then getScene may be null.
 
 
-        for (Node n : getChildren()) {
-            if (getScene() == null) {
-                return;
-            }
+        if (getScene() == null || culled) {
+            return;
+        }
+        // Further away nodes update less often
+        if (!locationScene.getUpdateTiers().shouldUpdate(this, locationScene.getCameraSnapshot())) {
+            return;
+        }
 
-            Vector3 cameraPosition = getScene().getCamera().getWorldPosition();
-            Vector3 nodePosition = n.getWorldPosition();
+        // Captured once per frame by LocationScene, rather than asking every node's camera
+        Vector3 cameraPosition = locationScene.getCameraSnapshot().getPosition();
+        List<Node> children = getChildren();
+        for (int i = 0; i < children.size(); i++) {
+            float[] nodeTransform = children.get(i).getWorldModelMatrix().data;
 
             // Compute the difference vector between the camera and anchor
-            float dx = cameraPosition.x - nodePosition.x;
-            float dy = cameraPosition.y - nodePosition.y;
-            float dz = cameraPosition.z - nodePosition.z;
+            float dx = cameraPosition.x - nodeTransform[12];
+            float dy = cameraPosition.y - nodeTransform[13];
+            float dz = cameraPosition.z - nodeTransform[14];
 
             // Compute the straight-line distance.
             double distanceInAR = Math.sqrt(dx * dx + dy * dy + dz * dz);
             setDistanceInAR(distanceInAR);
 
-            if (locationScene.shouldOffsetOverlapping()) {
-                if (locationScene.mArSceneView.getScene().overlapTestAll(n).size() > 0) {
-                    setHeight(getHeight() + 1.2F);
-                }
-            }
-
-            if (locationScene.shouldRemoveOverlapping()) {
-                Ray ray = new Ray();
-                ray.setOrigin(cameraPosition);
-
-                float xDelta = (float) (distanceInAR * Math.sin(Math.PI / 15)); //12 degrees
-                Vector3 cameraLeft = getScene().getCamera().getLeft().normalized();
-
-                Vector3 left = Vector3.add(nodePosition, cameraLeft.scaled(xDelta));
-                Vector3 center = nodePosition;
-                Vector3 right = Vector3.add(nodePosition, cameraLeft.scaled(-xDelta));
-
-                boolean isOverlapping = isOverlapping(n, ray, left, cameraPosition)
-                        || isOverlapping(n, ray, center, cameraPosition)
-                        || isOverlapping(n, ray, right, cameraPosition);
-
-                if (isOverlapping) {
-                    setEnabled(false);
-                } else {
-                    setEnabled(true);
-                }
-            }
+            // Overlapping markers are offset when placed, and removed
+            // each frame, by LocationScene for every marker at once
         }
 
         if (!locationScene.minimalRefreshing())
@@ -149,45 +207,28 @@ public class LocationNode extends AnchorNode {
 
 
         if (renderEvent != null) {
-            if (this.isTracking() && this.isActive() && this.isEnabled())
+            if (isAnchorTracking() && this.isActive() && this.isEnabled())
                 renderEvent.render(this);
         }
     }
 
-    private boolean isOverlapping(Node n, Ray ray, Vector3 target, Vector3 cameraPosition) {
-        Vector3 nodeDirection = Vector3.subtract(target, cameraPosition);
-        ray.setDirection(nodeDirection);
-
-        ArrayList<HitTestResult> hitTestResults = locationScene.mArSceneView.getScene().hitTestAll(ray);
-        if (hitTestResults.size() > 0) {
-
-            HitTestResult closestHit = null;
-            for (HitTestResult hit : hitTestResults) {
-                //Get the closest hit on enabled Node
-                if (hit.getNode() != null && hit.getNode().isEnabled()) {
-                    closestHit = hit;
-                    break;
-                }
-            }
-
-            // if closest hit is not the current node, it is hidden behind another node that is closer
-            return closestHit != null && closestHit.getNode() != n;
-        }
-        return false;
+    /**
+     * Whether our anchor is tracking - or the scene's root anchor, if we're placed under it
+     */
+    private boolean isAnchorTracking() {
+        if (getAnchor() != null)
+            return isTracking();
+        Node parent = getParent();
+        return parent instanceof AnchorNode && ((AnchorNode) parent).isTracking();
     }
 
     public void scaleAndRotate() {
-        for (Node n : getChildren()) {
-            int markerDistance = (int) Math.ceil(
-                    LocationUtils.distance(
-                            locationMarker.latitude,
-                            locationScene.deviceLocation.currentBestLocation.getLatitude(),
-                            locationMarker.longitude,
-                            locationScene.deviceLocation.currentBestLocation.getLongitude(),
-                            0,
-                            0)
-            );
-            setDistance(markerDistance);
+        // Distance is worked out for every marker at once by LocationScene.processFrame
+        int markerDistance = getDistance();
+        Vector3 cameraPosition = locationScene.getCameraSnapshot().getPosition();
+        List<Node> children = getChildren();
+        for (int i = 0; i < children.size(); i++) {
+            Node n = children.get(i);
 
             // Limit the distance of the Anchor within the scene.
             // Prevents uk.co.appoly.arcorelocation.rendering issues.
@@ -196,21 +237,24 @@ public class LocationNode extends AnchorNode {
                 renderDistance = locationScene.getDistanceLimit();
 
             float scale = 1F;
-            final Vector3 cameraPosition = getScene().getCamera().getWorldPosition();
-            Vector3 direction = Vector3.subtract(cameraPosition, n.getWorldPosition());
+            // Read straight from the world transform, getWorldPosition() makes a new Vector3
+            float[] nodeTransform = n.getWorldModelMatrix().data;
+            float nodeX = nodeTransform[12];
+            float nodeZ = nodeTransform[14];
+            float dx = cameraPosition.x - nodeX;
+            float dy = cameraPosition.y - nodeTransform[13];
+            float dz = cameraPosition.z - nodeZ;
 
             switch (scalingMode) {
                 case FIXED_SIZE_ON_SCREEN:
-                    scale = (float) Math.sqrt(direction.x * direction.x
-                            + direction.y * direction.y + direction.z * direction.z);
+                    scale = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
                     break;
                 case GRADUAL_TO_MAX_RENDER_DISTANCE:
                     float scaleDifference = gradualScalingMaxScale - gradualScalingMinScale;
                     scale = (gradualScalingMinScale + ((locationScene.getDistanceLimit() - markerDistance) * (scaleDifference / locationScene.getDistanceLimit()))) * renderDistance;
                     break;
                 case GRADUAL_FIXED_SIZE:
-                    scale = (float) Math.sqrt(direction.x * direction.x
-                            + direction.y * direction.y + direction.z * direction.z);
+                    scale = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
                     float gradualScale = gradualScalingMaxScale - gradualScalingMinScale;
                     gradualScale = gradualScalingMaxScale - (gradualScale / renderDistance * markerDistance);
                     scale *= Math.max(gradualScale, gradualScalingMinScale);
@@ -220,10 +264,14 @@ public class LocationNode extends AnchorNode {
             scale *= scaleModifier;
 
             //Log.d("LocationScene", "scale " + scale);
-            n.setWorldPosition(new Vector3(n.getWorldPosition().x, getHeight(), n.getWorldPosition().z));
-            Quaternion lookRotation = Quaternion.lookRotation(direction, Vector3.up());
-            n.setWorldRotation(lookRotation);
-            n.setWorldScale(new Vector3(scale, scale, scale));
+            scratchVector.set(nodeX, getHeight(), nodeZ);
+            n.setWorldPosition(scratchVector);
+            QuaternionUtils.lookRotation(dx, dy, dz, scratchQuaternion);
+            scratchRotation.set(scratchQuaternion[0], scratchQuaternion[1],
+                    scratchQuaternion[2], scratchQuaternion[3]);
+            n.setWorldRotation(scratchRotation);
+            scratchVector.set(scale, scale, scale);
+            n.setWorldScale(scratchVector);
         }
     }
 
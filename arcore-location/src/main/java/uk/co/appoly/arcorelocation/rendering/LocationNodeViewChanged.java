@@ -0,0 +1,11 @@
+package uk.co.appoly.arcorelocation.rendering;
+
+/**
+ * Called when a marker comes into, or goes out of, the camera's view.
+ * Only used while LocationScene culling is on.
+ */
+public interface LocationNodeViewChanged {
+    void onEnterView(LocationNode node);
+
+    void onExitView(LocationNode node);
+}
@@ -0,0 +1,134 @@
+package uk.co.appoly.arcorelocation.rendering;
+
+import com.google.ar.sceneform.math.Vector3;
+
+/**
+ * Decides how often each LocationNode updates, by its distance:
+ * near nodes every frame, mid-range nodes every [midInterval] frames,
+ * and far nodes only once the camera has moved or turned far enough since their last update.
+ * <p>
+ * Configured through LocationScene.setUpdateTiers and setFarUpdateThresholds.
+ */
+public class UpdateTiers {
+
+    // Metres, real-world distance as LocationNode.getDistance
+    private int nearDistance = Integer.MAX_VALUE;
+    private int farDistance = Integer.MAX_VALUE;
+    private int midInterval = 1;
+    private float farMoveThreshold = 1F; // metres
+    private float farRotationThreshold = 5F; // degrees
+    private float farRotationCos = (float) Math.cos(Math.toRadians(5));
+
+    private long updatedCount = 0;
+    private long skippedCount = 0;
+
+    /**
+     * @param nearDistance - metres, nodes nearer update every frame
+     * @param farDistance  - metres, nodes further away update when the camera moves
+     * @param midInterval  - frames between updates for nodes in between
+     */
+    public void setTiers(int nearDistance, int farDistance, int midInterval) {
+        if (farDistance < nearDistance || midInterval < 1)
+            throw new IllegalArgumentException("Tiers must be in order, and updates at least every frame");
+        this.nearDistance = nearDistance;
+        this.farDistance = farDistance;
+        this.midInterval = midInterval;
+    }
+
+    /**
+     * @param moveMetres      - camera movement that updates far nodes
+     * @param rotationDegrees - camera rotation that updates far nodes
+     */
+    public void setFarThresholds(float moveMetres, float rotationDegrees) {
+        this.farMoveThreshold = moveMetres;
+        this.farRotationThreshold = rotationDegrees;
+        this.farRotationCos = (float) Math.cos(Math.toRadians(rotationDegrees));
+    }
+
+    public int getNearDistance() {
+        return nearDistance;
+    }
+
+    public int getFarDistance() {
+        return farDistance;
+    }
+
+    public int getMidInterval() {
+        return midInterval;
+    }
+
+    public float getFarMoveThreshold() {
+        return farMoveThreshold;
+    }
+
+    public float getFarRotationThreshold() {
+        return farRotationThreshold;
+    }
+
+    /**
+     * Node updates run since the counters were reset
+     */
+    public long getUpdatedCount() {
+        return updatedCount;
+    }
+
+    /**
+     * Node updates skipped since the counters were reset
+     */
+    public long getSkippedCount() {
+        return skippedCount;
+    }
+
+    public void resetCounters() {
+        updatedCount = 0;
+        skippedCount = 0;
+    }
+
+    /**
+     * Whether [node] should update this frame. If so, remembers the camera it updated against.
+     */
+    boolean shouldUpdate(LocationNode node, CameraSnapshot camera) {
+        long frame = camera.getFrameCount();
+        boolean due;
+        if (node.lastUpdateFrame < 0) {
+            due = true;
+        } else {
+            int distance = node.getDistance();
+            if (distance < nearDistance) {
+                due = true;
+            } else if (distance < farDistance) {
+                due = frame - node.lastUpdateFrame >= midInterval;
+            } else {
+                due = hasCameraChanged(node, camera);
+            }
+        }
+
+        if (!due) {
+            skippedCount++;
+            return false;
+        }
+        updatedCount++;
+        node.lastUpdateFrame = frame;
+        Vector3 position = camera.getPosition();
+        Vector3 forward = camera.getForward();
+        node.lastUpdateCamera[0] = position.x;
+        node.lastUpdateCamera[1] = position.y;
+        node.lastUpdateCamera[2] = position.z;
+        node.lastUpdateCamera[3] = forward.x;
+        node.lastUpdateCamera[4] = forward.y;
+        node.lastUpdateCamera[5] = forward.z;
+        return true;
+    }
+
+    private boolean hasCameraChanged(LocationNode node, CameraSnapshot camera) {
+        float[] last = node.lastUpdateCamera;
+        Vector3 position = camera.getPosition();
+        float dx = position.x - last[0];
+        float dy = position.y - last[1];
+        float dz = position.z - last[2];
+        if (dx * dx + dy * dy + dz * dz > farMoveThreshold * farMoveThreshold)
+            return true;
+        Vector3 forward = camera.getForward();
+        return forward.x * last[3] + forward.y * last[4] + forward.z * last[5] < farRotationCos;
+    }
+}
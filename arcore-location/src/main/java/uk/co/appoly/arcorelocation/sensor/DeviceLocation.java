@@ -10,10 +10,8 @@ import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
-import java.util.ArrayList;
-
 import uk.co.appoly.arcorelocation.LocationScene;
-import uk.co.appoly.arcorelocation.utils.KalmanLatLong;
+import uk.co.appoly.arcorelocation.utils.KalmanConstantVelocity;
 
 /**
  * Created by John on 02/03/2018.
@@ -24,41 +22,89 @@ public class DeviceLocation implements LocationListener {
     private static final String TAG = DeviceLocation.class.getSimpleName();
     private static final int TWO_MINUTES = 1000 * 60 * 2;
     public Location currentBestLocation;
+    // Goes up every time currentBestLocation changes
+    private int locationVersion = 0;
     private boolean isLocationManagerUpdatingLocation;
-    private ArrayList<Location> locationList;
-    private ArrayList<Location> oldLocationList;
-    private ArrayList<Location> noAccuracyLocationList;
-    private ArrayList<Location> inaccurateLocationList;
-    private ArrayList<Location> kalmanNGLocationList;
-    private float currentSpeed = 0.0f; // meters/second
-    private KalmanLatLong kalmanFilter;
+    // Recent fixes, accepted or rejected
+    private LocationHistory history = new LocationHistory(100);
+    private LocationFilterChain filterChain;
+    // Accepted fixes, tracked with their velocity so the position can be predicted between them
+    private final KalmanConstantVelocity motionFilter = new KalmanConstantVelocity(1.5);
     private int gpsCount = 0;
     private long runStartTimeInMillis;
+    private TraceRecorder traceRecorder;
     private LocationManager locationManager;
     private LocationScene locationScene;
-    private int minimumAccuracy = 25;
     private Context context;
 
     public DeviceLocation(Context context, LocationScene locationScene) {
         this.context = context.getApplicationContext();
         this.locationScene = locationScene;
         isLocationManagerUpdatingLocation = false;
-        locationList = new ArrayList<>();
-        noAccuracyLocationList = new ArrayList<>();
-        oldLocationList = new ArrayList<>();
-        inaccurateLocationList = new ArrayList<>();
-        kalmanNGLocationList = new ArrayList<>();
-        kalmanFilter = new KalmanLatLong(3);
+        filterChain = new LocationFilterChain();
 
         startUpdatingLocation();
     }
 
+    /**
+     * The checks every new fix goes through, see LocationFilterChain
+     */
+    public LocationFilterChain getFilterChain() {
+        return filterChain;
+    }
+
     public int getMinimumAccuracy() {
-        return minimumAccuracy;
+        return filterChain.getMinimumAccuracy();
     }
 
     public void setMinimumAccuracy(int minimumAccuracy) {
-        this.minimumAccuracy = minimumAccuracy;
+        filterChain.setMinimumAccuracy(minimumAccuracy);
+    }
+
+    /**
+     * The most recent fixes received, and why any were rejected
+     */
+    public LocationHistory getHistory() {
+        return history;
+    }
+
+    /**
+     * How many recent fixes getHistory keeps. Clears the history.
+     *
+     * @param historySize - 100 by default
+     */
+    public void setHistorySize(int historySize) {
+        history = new LocationHistory(historySize);
+    }
+
+    /**
+     * Where the device probably is at [elapsedRealtimeMillis], carrying on from the last
+     * accepted fix at the speed and direction it's been moving.
+     *
+     * @param elapsedRealtimeMillis - e.g. SystemClock.elapsedRealtime() for now
+     * @param out                   - latitude and longitude are written to out[0] and out[1]
+     * @return - false if there's no fix yet
+     */
+    public boolean predictLocation(long elapsedRealtimeMillis, double[] out) {
+        return motionFilter.predict(elapsedRealtimeMillis, out);
+    }
+
+    /**
+     * Records every fix to [traceRecorder] as it reaches the filter chain,
+     * or stops recording if null.
+     */
+    public void setTraceRecorder(TraceRecorder traceRecorder) {
+        this.traceRecorder = traceRecorder;
+        if (traceRecorder != null)
+            traceRecorder.recordRunStart(SystemClock.elapsedRealtimeNanos(), runStartTimeInMillis);
+    }
+
+    /**
+     * Changes every time a new location is accepted, so anything
+     * worked out from currentBestLocation can tell when it's stale.
+     */
+    public int getLocationVersion() {
+        return locationVersion;
     }
 
 
@@ -94,14 +140,13 @@ public class DeviceLocation implements LocationListener {
         if (this.isLocationManagerUpdatingLocation == false) {
             isLocationManagerUpdatingLocation = true;
             runStartTimeInMillis = (long) (SystemClock.elapsedRealtimeNanos() / 1000000);
+            filterChain.setRunStartTime(runStartTimeInMillis);
+            if (traceRecorder != null)
+                traceRecorder.recordRunStart(SystemClock.elapsedRealtimeNanos(), runStartTimeInMillis);
 
 
-            locationList.clear();
-
-            oldLocationList.clear();
-            noAccuracyLocationList.clear();
-            inaccurateLocationList.clear();
-            kalmanNGLocationList.clear();
+            history.clear();
+            motionFilter.reset();
 
             LocationManager locationManager = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
 
@@ -165,82 +210,65 @@ public class DeviceLocation implements LocationListener {
 
         if (currentBestLocation == null) {
             currentBestLocation = location;
+            locationVersion++;
 
             locationEvents();
         }
 
-        long age = getLocationAge(location);
-
-        if (age > 5 * 1000) { //more than 5 seconds
-            Log.d(TAG, "Location is old");
-            oldLocationList.add(location);
-
-            if (locationScene.isDebugEnabled())
-                Toast.makeText(context, "Rejected: old", Toast.LENGTH_SHORT).show();
-            return false;
-        }
-
-        if (location.getAccuracy() <= 0) {
-            Log.d(TAG, "Latitidue and longitude values are invalid.");
-            if (locationScene.isDebugEnabled())
-                Toast.makeText(context, "Rejected: invalid", Toast.LENGTH_SHORT).show();
-            noAccuracyLocationList.add(location);
-            return false;
-        }
-
-        //setAccuracy(newLocation.getAccuracy());
-        float horizontalAccuracy = location.getAccuracy();
-        if (horizontalAccuracy > getMinimumAccuracy()) { //10meter filter
-            Log.d(TAG, "Accuracy is too low.");
-            inaccurateLocationList.add(location);
-            if (locationScene.isDebugEnabled())
-                Toast.makeText(context, "Rejected: innacurate", Toast.LENGTH_SHORT).show();
-            return false;
-        }
-
-
-        /* Kalman Filter */
-        float Qvalue;
-
-        long locationTimeInMillis = (long) (location.getElapsedRealtimeNanos() / 1000000);
-        long elapsedTimeInMillis = locationTimeInMillis - runStartTimeInMillis;
-
-        if (currentSpeed == 0.0f) {
-            Qvalue = 3.0f; //3 meters per second
-        } else {
-            Qvalue = currentSpeed; // meters per second
+        long timeInMillis = (long) (location.getElapsedRealtimeNanos() / 1000000);
+        long ageMillis = getLocationAge(location);
+        if (traceRecorder != null)
+            traceRecorder.recordLocation(SystemClock.elapsedRealtimeNanos(),
+                    location.getLatitude(), location.getLongitude(), location.getAccuracy(),
+                    location.getSpeed(), timeInMillis, ageMillis);
+        LocationFilterChain.Result result = filterChain.filter(
+                location.getLatitude(),
+                location.getLongitude(),
+                location.getAccuracy(),
+                location.getSpeed(),
+                timeInMillis,
+                ageMillis);
+        history.add(timeInMillis, location.getLatitude(), location.getLongitude(),
+                location.getAccuracy(), result);
+
+        switch (result) {
+            case OLD:
+                Log.d(TAG, "Location is old");
+                if (locationScene.isDebugEnabled())
+                    Toast.makeText(context, "Rejected: old", Toast.LENGTH_SHORT).show();
+                return false;
+            case NO_ACCURACY:
+                Log.d(TAG, "Latitidue and longitude values are invalid.");
+                if (locationScene.isDebugEnabled())
+                    Toast.makeText(context, "Rejected: invalid", Toast.LENGTH_SHORT).show();
+                return false;
+            case INACCURATE:
+                Log.d(TAG, "Accuracy is too low.");
+                if (locationScene.isDebugEnabled())
+                    Toast.makeText(context, "Rejected: innacurate", Toast.LENGTH_SHORT).show();
+                return false;
+            case KALMAN_REJECTED:
+                Log.d(TAG, "Kalman Filter detects mal GPS, we should probably remove this from track");
+                if (locationScene.isDebugEnabled())
+                    Toast.makeText(context, "Rejected: kalman filter", Toast.LENGTH_SHORT).show();
+                return false;
+            case FILTERED:
+                Log.d(TAG, "Rejected by a custom filter stage");
+                if (locationScene.isDebugEnabled())
+                    Toast.makeText(context, "Rejected: filter", Toast.LENGTH_SHORT).show();
+                return false;
         }
 
-        kalmanFilter.Process(location.getLatitude(), location.getLongitude(), location.getAccuracy(), elapsedTimeInMillis, Qvalue);
-        double predictedLat = kalmanFilter.get_lat();
-        double predictedLng = kalmanFilter.get_lng();
-
         Location predictedLocation = new Location("");//provider name is unecessary
-        predictedLocation.setLatitude(predictedLat);//your coords of course
-        predictedLocation.setLongitude(predictedLng);
-        float predictedDeltaInMeters = predictedLocation.distanceTo(location);
-
-        if (predictedDeltaInMeters > 60) {
-            Log.d(TAG, "Kalman Filter detects mal GPS, we should probably remove this from track");
-            kalmanFilter.consecutiveRejectCount += 1;
-
-            if (kalmanFilter.consecutiveRejectCount > 3) {
-                kalmanFilter = new KalmanLatLong(3); //reset Kalman Filter if it rejects more than 3 times in raw.
-            }
-
-            kalmanNGLocationList.add(location);
-            if (locationScene.isDebugEnabled())
-                Toast.makeText(context, "Rejected: kalman filter", Toast.LENGTH_SHORT).show();
-            return false;
-        } else {
-            kalmanFilter.consecutiveRejectCount = 0;
-        }
-
+        predictedLocation.setLatitude(filterChain.getLatitude());//your coords of course
+        predictedLocation.setLongitude(filterChain.getLongitude());
+        predictedLocation.setAccuracy(location.getAccuracy());
 
         Log.d(TAG, "Location quality is good enough.");
         currentBestLocation = predictedLocation;
-        currentSpeed = location.getSpeed();
-        locationList.add(location);
+        locationVersion++;
+        motionFilter.update(location.getLatitude(), location.getLongitude(),
+                location.getAccuracy(), timeInMillis);
 
         locationEvents();
 
@@ -5,8 +5,8 @@ import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
+import android.os.SystemClock;
 import android.util.Log;
-import android.view.Surface;
 import android.view.WindowManager;
 
 /**
@@ -19,7 +19,8 @@ public class DeviceOrientation implements SensorEventListener {
     public float roll;
     private WindowManager windowManager;
     private SensorManager mSensorManager;
-    private float orientation = 0f;
+    private final RotationVectorOrientation rotationVectorOrientation = new RotationVectorOrientation();
+    private TraceRecorder traceRecorder;
 
     public DeviceOrientation(Context context) {
         mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
@@ -32,7 +33,14 @@ public class DeviceOrientation implements SensorEventListener {
      * @return orientation [0-360] in degrees
      */
     public float getOrientation() {
-        return orientation;
+        return rotationVectorOrientation.getOrientation();
+    }
+
+    /**
+     * Records every rotation vector sample to [traceRecorder], or stops recording if null.
+     */
+    public void setTraceRecorder(TraceRecorder traceRecorder) {
+        this.traceRecorder = traceRecorder;
     }
 
     @Override
@@ -41,7 +49,11 @@ public class DeviceOrientation implements SensorEventListener {
         switch (event.sensor.getType()) {
             case Sensor.TYPE_GAME_ROTATION_VECTOR:
             case Sensor.TYPE_ROTATION_VECTOR:
-                processSensorOrientation(event.values);
+                int displayRotation = windowManager.getDefaultDisplay().getRotation();
+                if (traceRecorder != null)
+                    traceRecorder.recordRotation(SystemClock.elapsedRealtimeNanos(),
+                            event.values, displayRotation);
+                rotationVectorOrientation.update(event.values, displayRotation);
                 break;
             default:
                 Log.e("DeviceOrientation", "Sensor event type not supported");
@@ -49,43 +61,6 @@ public class DeviceOrientation implements SensorEventListener {
         }
     }
 
-    @SuppressWarnings("SuspiciousNameCombination")
-    private void processSensorOrientation(float[] rotation) {
-        float[] rotationMatrix = new float[9];
-        SensorManager.getRotationMatrixFromVector(rotationMatrix, rotation);
-        final int worldAxisX;
-        final int worldAxisY;
-
-        switch (windowManager.getDefaultDisplay().getRotation()) {
-            case Surface.ROTATION_90:
-                worldAxisX = SensorManager.AXIS_Z;
-                worldAxisY = SensorManager.AXIS_MINUS_X;
-                break;
-            case Surface.ROTATION_180:
-                worldAxisX = SensorManager.AXIS_MINUS_X;
-                worldAxisY = SensorManager.AXIS_MINUS_Z;
-                break;
-            case Surface.ROTATION_270:
-                worldAxisX = SensorManager.AXIS_MINUS_Z;
-                worldAxisY = SensorManager.AXIS_X;
-                break;
-            case Surface.ROTATION_0:
-            default:
-                worldAxisX = SensorManager.AXIS_X;
-                worldAxisY = SensorManager.AXIS_Z;
-                break;
-        }
-        float[] adjustedRotationMatrix = new float[9];
-        SensorManager.remapCoordinateSystem(rotationMatrix, worldAxisX,
-                worldAxisY, adjustedRotationMatrix);
-
-        // azimuth/pitch/roll
-        float[] orientation = new float[3];
-        SensorManager.getOrientation(adjustedRotationMatrix, orientation);
-
-        this.orientation = ((float) Math.toDegrees(orientation[0]) + 360f) % 360f;
-    }
-
     @Override
     public void onAccuracyChanged(Sensor sensor, int accuracy) {
         if (accuracy == SensorManager.SENSOR_STATUS_UNRELIABLE) {
@@ -0,0 +1,12 @@
+package uk.co.appoly.arcorelocation.sensor;
+
+/**
+ * One stage of a LocationFilterChain. See LocationFilters for the built-in stages.
+ */
+public interface LocationFilter {
+    /**
+     * @return - ACCEPTED to pass the fix on to the next stage, or why it was rejected
+     * (FILTERED if none of the others fit)
+     */
+    LocationFilterChain.Result filter(LocationFix fix);
+}
@@ -0,0 +1,204 @@
+package uk.co.appoly.arcorelocation.sensor;
+
+import java.util.Arrays;
+
+/**
+ * The checks DeviceLocation runs on every new fix: a list of LocationFilter stages,
+ * run in order until one rejects the fix. By default these are the LocationFilters built-ins:
+ * age, missing accuracy, minimum accuracy, then Kalman filter gating.
+ * Stages can be added, removed or replaced, e.g. through LocationScene.getLocationFilterChain.
+ * <p>
+ * Each stage counts the fixes it accepted and rejected, and the time it spent on them.
+ * <p>
+ * Works on plain values rather than android.location.Location,
+ * so it can run (and be benchmarked) on a normal JVM.
+ */
+public class LocationFilterChain {
+
+    public enum Result {
+        ACCEPTED,
+        OLD,
+        NO_ACCURACY,
+        INACCURATE,
+        KALMAN_REJECTED,
+        // Rejected by a stage that isn't one of the above
+        FILTERED
+    }
+
+    private static final long MAX_AGE_MILLIS = 5 * 1000;
+    // Fixes further than this from the Kalman prediction are treated as bad GPS
+    private static final float MAX_PREDICTED_DELTA_METRES = 60;
+
+    private final LocationFilters.MinimumAccuracy minimumAccuracy = new LocationFilters.MinimumAccuracy(25);
+    private final LocationFix fix = new LocationFix();
+    private long runStartTimeInMillis;
+
+    private int stageCount = 0;
+    private LocationFilter[] stages = new LocationFilter[4];
+    // Per stage
+    private long[] acceptedCounts = new long[4];
+    private long[] rejectedCounts = new long[4];
+    private long[] stageNanos = new long[4];
+
+    // Last accepted, filtered position
+    private double latitude;
+    private double longitude;
+
+    public LocationFilterChain() {
+        addStage(new LocationFilters.MaxAge(MAX_AGE_MILLIS));
+        addStage(new LocationFilters.HasAccuracy());
+        addStage(minimumAccuracy);
+        addStage(new LocationFilters.KalmanGate(MAX_PREDICTED_DELTA_METRES));
+    }
+
+    /**
+     * See LocationFilters.MinimumAccuracy - only affects the built-in stage
+     */
+    public int getMinimumAccuracy() {
+        return minimumAccuracy.getMinimumAccuracy();
+    }
+
+    public void setMinimumAccuracy(int minimumAccuracy) {
+        this.minimumAccuracy.setMinimumAccuracy(minimumAccuracy);
+    }
+
+    /**
+     * LocationFix.getRunTimeMillis is relative to this
+     */
+    public void setRunStartTime(long runStartTimeInMillis) {
+        this.runStartTimeInMillis = runStartTimeInMillis;
+    }
+
+    /**
+     * Filtered latitude of the last accepted fix
+     */
+    public double getLatitude() {
+        return latitude;
+    }
+
+    /**
+     * Filtered longitude of the last accepted fix
+     */
+    public double getLongitude() {
+        return longitude;
+    }
+
+    public int getStageCount() {
+        return stageCount;
+    }
+
+    public LocationFilter getStage(int stage) {
+        return stages[stage];
+    }
+
+    /**
+     * Adds a stage to the end of the chain.
+     */
+    public void addStage(LocationFilter filter) {
+        addStage(stageCount, filter);
+    }
+
+    /**
+     * Inserts a stage at [stage], moving later stages (and their counters) along one.
+     */
+    public void addStage(int stage, LocationFilter filter) {
+        if (stage < 0 || stage > stageCount)
+            throw new IndexOutOfBoundsException("Stage " + stage + " of " + stageCount);
+        if (stageCount == stages.length) {
+            int capacity = stageCount * 2;
+            stages = Arrays.copyOf(stages, capacity);
+            acceptedCounts = Arrays.copyOf(acceptedCounts, capacity);
+            rejectedCounts = Arrays.copyOf(rejectedCounts, capacity);
+            stageNanos = Arrays.copyOf(stageNanos, capacity);
+        }
+        int moved = stageCount - stage;
+        System.arraycopy(stages, stage, stages, stage + 1, moved);
+        System.arraycopy(acceptedCounts, stage, acceptedCounts, stage + 1, moved);
+        System.arraycopy(rejectedCounts, stage, rejectedCounts, stage + 1, moved);
+        System.arraycopy(stageNanos, stage, stageNanos, stage + 1, moved);
+        stages[stage] = filter;
+        acceptedCounts[stage] = 0;
+        rejectedCounts[stage] = 0;
+        stageNanos[stage] = 0;
+        stageCount++;
+    }
+
+    public void removeStage(int stage) {
+        if (stage < 0 || stage >= stageCount)
+            throw new IndexOutOfBoundsException("Stage " + stage + " of " + stageCount);
+        int moved = stageCount - stage - 1;
+        System.arraycopy(stages, stage + 1, stages, stage, moved);
+        System.arraycopy(acceptedCounts, stage + 1, acceptedCounts, stage, moved);
+        System.arraycopy(rejectedCounts, stage + 1, rejectedCounts, stage, moved);
+        System.arraycopy(stageNanos, stage + 1, stageNanos, stage, moved);
+        stages[--stageCount] = null;
+    }
+
+    /**
+     * Removes every stage, so every fix is accepted until new ones are added.
+     */
+    public void clearStages() {
+        Arrays.fill(stages, 0, stageCount, null);
+        stageCount = 0;
+    }
+
+    /**
+     * Fixes [stage] passed on since the counters were reset
+     */
+    public long getAcceptedCount(int stage) {
+        return acceptedCounts[stage];
+    }
+
+    /**
+     * Fixes [stage] rejected since the counters were reset
+     */
+    public long getRejectedCount(int stage) {
+        return rejectedCounts[stage];
+    }
+
+    /**
+     * Time [stage] has spent filtering since the counters were reset
+     *
+     * @return - nanoseconds
+     */
+    public long getStageNanos(int stage) {
+        return stageNanos[stage];
+    }
+
+    public void resetCounters() {
+        Arrays.fill(acceptedCounts, 0);
+        Arrays.fill(rejectedCounts, 0);
+        Arrays.fill(stageNanos, 0);
+    }
+
+    /**
+     * @param accuracy              - metres, 1 standard deviation
+     * @param speed                 - metres per second
+     * @param elapsedRealtimeMillis - time of the fix, since boot
+     * @param ageMillis             - how old the fix was when it arrived
+     * @return - ACCEPTED, or why the fix was rejected
+     */
+    public Result filter(double latitude, double longitude, float accuracy, float speed,
+                         long elapsedRealtimeMillis, long ageMillis) {
+        fix.set(latitude, longitude, accuracy, speed,
+                elapsedRealtimeMillis, ageMillis, runStartTimeInMillis);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < stageCount; i++) {
+            Result result = stages[i].filter(fix);
+            long end = System.nanoTime();
+            stageNanos[i] += end - start;
+            start = end;
+
+            if (result != Result.ACCEPTED) {
+                rejectedCounts[i]++;
+                return result;
+            }
+            acceptedCounts[i]++;
+        }
+
+        this.latitude = fix.getFilteredLatitude();
+        this.longitude = fix.getFilteredLongitude();
+        return Result.ACCEPTED;
+    }
+}
@@ -0,0 +1,142 @@
+package uk.co.appoly.arcorelocation.sensor;
+
+import uk.co.appoly.arcorelocation.utils.KalmanLatLong;
+import uk.co.appoly.arcorelocation.utils.LocationUtils;
+
+/**
+ * The built-in LocationFilter stages. A new LocationFilterChain runs them in this order.
+ */
+public class LocationFilters {
+
+    private LocationFilters() {
+    }
+
+    /**
+     * Rejects fixes that were already old when they arrived.
+     */
+    public static class MaxAge implements LocationFilter {
+
+        private long maxAgeMillis;
+
+        public MaxAge(long maxAgeMillis) {
+            this.maxAgeMillis = maxAgeMillis;
+        }
+
+        public long getMaxAgeMillis() {
+            return maxAgeMillis;
+        }
+
+        public void setMaxAgeMillis(long maxAgeMillis) {
+            this.maxAgeMillis = maxAgeMillis;
+        }
+
+        @Override
+        public LocationFilterChain.Result filter(LocationFix fix) {
+            return fix.getAgeMillis() > maxAgeMillis
+                    ? LocationFilterChain.Result.OLD : LocationFilterChain.Result.ACCEPTED;
+        }
+    }
+
+    /**
+     * Rejects fixes with no accuracy, their latitude and longitude can't be trusted.
+     */
+    public static class HasAccuracy implements LocationFilter {
+
+        @Override
+        public LocationFilterChain.Result filter(LocationFix fix) {
+            return fix.getAccuracy() <= 0
+                    ? LocationFilterChain.Result.NO_ACCURACY : LocationFilterChain.Result.ACCEPTED;
+        }
+    }
+
+    /**
+     * Rejects fixes less accurate than a minimum.
+     */
+    public static class MinimumAccuracy implements LocationFilter {
+
+        private int minimumAccuracy;
+
+        /**
+         * @param minimumAccuracy - metres, fixes with a larger accuracy radius are rejected
+         */
+        public MinimumAccuracy(int minimumAccuracy) {
+            this.minimumAccuracy = minimumAccuracy;
+        }
+
+        public int getMinimumAccuracy() {
+            return minimumAccuracy;
+        }
+
+        public void setMinimumAccuracy(int minimumAccuracy) {
+            this.minimumAccuracy = minimumAccuracy;
+        }
+
+        @Override
+        public LocationFilterChain.Result filter(LocationFix fix) {
+            return fix.getAccuracy() > minimumAccuracy
+                    ? LocationFilterChain.Result.INACCURATE : LocationFilterChain.Result.ACCEPTED;
+        }
+    }
+
+    /**
+     * Runs fixes through a Kalman filter, and rejects those too far from its prediction as bad GPS.
+     * Accepted fixes are moved to the filtered position.
+     */
+    public static class KalmanGate implements LocationFilter {
+
+        private static final float DEFAULT_Q_METRES_PER_SECOND = 3;
+
+        private KalmanLatLong kalmanFilter = new KalmanLatLong(DEFAULT_Q_METRES_PER_SECOND);
+        private float maxPredictedDelta;
+        private float currentSpeed = 0.0f; // meters/second
+
+        /**
+         * @param maxPredictedDelta - metres, fixes further than this from the prediction are rejected
+         */
+        public KalmanGate(float maxPredictedDelta) {
+            this.maxPredictedDelta = maxPredictedDelta;
+        }
+
+        public float getMaxPredictedDelta() {
+            return maxPredictedDelta;
+        }
+
+        public void setMaxPredictedDelta(float maxPredictedDelta) {
+            this.maxPredictedDelta = maxPredictedDelta;
+        }
+
+        @Override
+        public LocationFilterChain.Result filter(LocationFix fix) {
+            float Qvalue;
+
+            if (currentSpeed == 0.0f) {
+                Qvalue = DEFAULT_Q_METRES_PER_SECOND; //3 meters per second
+            } else {
+                Qvalue = currentSpeed; // meters per second
+            }
+
+            kalmanFilter.Process(fix.getLatitude(), fix.getLongitude(), fix.getAccuracy(),
+                    fix.getRunTimeMillis(), Qvalue);
+            double predictedLat = kalmanFilter.get_lat();
+            double predictedLng = kalmanFilter.get_lng();
+
+            double predictedDeltaInMeters = LocationUtils.distance(
+                    predictedLat, fix.getLatitude(), predictedLng, fix.getLongitude(), 0, 0);
+
+            if (predictedDeltaInMeters > maxPredictedDelta) {
+                kalmanFilter.consecutiveRejectCount += 1;
+
+                if (kalmanFilter.consecutiveRejectCount > 3) {
+                    //reset Kalman Filter if it rejects more than 3 times in raw.
+                    kalmanFilter = new KalmanLatLong(DEFAULT_Q_METRES_PER_SECOND);
+                }
+                return LocationFilterChain.Result.KALMAN_REJECTED;
+            }
+            kalmanFilter.consecutiveRejectCount = 0;
+
+            fix.setFilteredPosition(predictedLat, predictedLng);
+            currentSpeed = fix.getSpeed();
+            return LocationFilterChain.Result.ACCEPTED;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package uk.co.appoly.arcorelocation.sensor;
+
+/**
+ * One location fix on its way through a LocationFilterChain, as plain values.
+ * The chain reuses one instance for every fix, so stages shouldn't keep it.
+ * <p>
+ * Stages can move the fix with setFilteredPosition, e.g. to a smoothed estimate.
+ * The chain reports the filtered position of each accepted fix.
+ */
+public class LocationFix {
+
+    private double latitude;
+    private double longitude;
+    private float accuracy;
+    private float speed;
+    private long elapsedRealtimeMillis;
+    private long ageMillis;
+    private long runTimeMillis;
+    private double filteredLatitude;
+    private double filteredLongitude;
+
+    void set(double latitude, double longitude, float accuracy, float speed,
+             long elapsedRealtimeMillis, long ageMillis, long runStartTimeInMillis) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.accuracy = accuracy;
+        this.speed = speed;
+        this.elapsedRealtimeMillis = elapsedRealtimeMillis;
+        this.ageMillis = ageMillis;
+        this.runTimeMillis = elapsedRealtimeMillis - runStartTimeInMillis;
+        this.filteredLatitude = latitude;
+        this.filteredLongitude = longitude;
+    }
+
+    /**
+     * As measured
+     */
+    public double getLatitude() {
+        return latitude;
+    }
+
+    /**
+     * As measured
+     */
+    public double getLongitude() {
+        return longitude;
+    }
+
+    /**
+     * Metres, 1 standard deviation. 0 or less if unknown
+     */
+    public float getAccuracy() {
+        return accuracy;
+    }
+
+    /**
+     * Metres per second
+     */
+    public float getSpeed() {
+        return speed;
+    }
+
+    /**
+     * Time of the fix, since boot
+     */
+    public long getElapsedRealtimeMillis() {
+        return elapsedRealtimeMillis;
+    }
+
+    /**
+     * How old the fix was when it arrived
+     */
+    public long getAgeMillis() {
+        return ageMillis;
+    }
+
+    /**
+     * Time of the fix, since location updates started
+     */
+    public long getRunTimeMillis() {
+        return runTimeMillis;
+    }
+
+    public double getFilteredLatitude() {
+        return filteredLatitude;
+    }
+
+    public double getFilteredLongitude() {
+        return filteredLongitude;
+    }
+
+    public void setFilteredPosition(double latitude, double longitude) {
+        this.filteredLatitude = latitude;
+        this.filteredLongitude = longitude;
+    }
+}
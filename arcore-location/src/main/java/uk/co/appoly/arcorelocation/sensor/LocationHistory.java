@@ -0,0 +1,108 @@
+package uk.co.appoly.arcorelocation.sensor;
+
+/**
+ * The most recent location fixes DeviceLocation has received, accepted or not, for diagnostics.
+ * <p>
+ * A fixed-size ring of primitive arrays: once full, each new fix overwrites the oldest,
+ * so memory stays the same however long the app runs. Counts of each result are kept for every fix.
+ */
+public class LocationHistory {
+
+    // values() clones the array each call
+    private static final LocationFilterChain.Result[] RESULTS = LocationFilterChain.Result.values();
+
+    private final int capacity;
+    private final long[] times;
+    private final double[] latitudes;
+    private final double[] longitudes;
+    private final float[] accuracies;
+    // LocationFilterChain.Result ordinals
+    private final byte[] results;
+    // Next slot to write, and how many slots are in use
+    private int head = 0;
+    private int size = 0;
+    private final long[] resultCounts = new long[RESULTS.length];
+
+    /**
+     * @param capacity - most fixes to keep
+     */
+    public LocationHistory(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("History must hold at least one fix");
+        this.capacity = capacity;
+        times = new long[capacity];
+        latitudes = new double[capacity];
+        longitudes = new double[capacity];
+        accuracies = new float[capacity];
+        results = new byte[capacity];
+    }
+
+    /**
+     * @param time - milliseconds since boot, as Location.getElapsedRealtimeNanos
+     */
+    public void add(long time, double latitude, double longitude, float accuracy,
+                    LocationFilterChain.Result result) {
+        times[head] = time;
+        latitudes[head] = latitude;
+        longitudes[head] = longitude;
+        accuracies[head] = accuracy;
+        results[head] = (byte) result.ordinal();
+        head = (head + 1) % capacity;
+        if (size < capacity)
+            size++;
+        resultCounts[result.ordinal()]++;
+    }
+
+    public void clear() {
+        head = 0;
+        size = 0;
+        for (int i = 0; i < resultCounts.length; i++)
+            resultCounts[i] = 0;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Number of fixes held, up to the capacity
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Fixes with [result] since the history was cleared, including those no longer held
+     */
+    public long getCount(LocationFilterChain.Result result) {
+        return resultCounts[result.ordinal()];
+    }
+
+    // Fixes are numbered from 0, the oldest held, to size() - 1, the newest
+
+    public long getTime(int i) {
+        return times[slot(i)];
+    }
+
+    public double getLatitude(int i) {
+        return latitudes[slot(i)];
+    }
+
+    public double getLongitude(int i) {
+        return longitudes[slot(i)];
+    }
+
+    public float getAccuracy(int i) {
+        return accuracies[slot(i)];
+    }
+
+    public LocationFilterChain.Result getResult(int i) {
+        return RESULTS[results[slot(i)]];
+    }
+
+    private int slot(int i) {
+        if (i < 0 || i >= size)
+            throw new IndexOutOfBoundsException("Fix " + i + " of " + size);
+        return (head - size + i + capacity) % capacity;
+    }
+}
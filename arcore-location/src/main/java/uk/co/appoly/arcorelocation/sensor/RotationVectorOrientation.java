@@ -0,0 +1,158 @@
+package uk.co.appoly.arcorelocation.sensor;
+
+/**
+ * Turns rotation vector sensor samples into the device's compass heading, as DeviceOrientation does.
+ * <p>
+ * The same steps as SensorManager.getRotationMatrixFromVector, remapCoordinateSystem
+ * and getOrientation, in plain Java, so recorded traces can be replayed on a normal JVM.
+ * Works in fixed scratch arrays, so samples don't allocate.
+ */
+public class RotationVectorOrientation {
+
+    // Surface.ROTATION_* values
+    public static final int ROTATION_0 = 0;
+    public static final int ROTATION_90 = 1;
+    public static final int ROTATION_180 = 2;
+    public static final int ROTATION_270 = 3;
+
+    // SensorManager.AXIS_* values
+    private static final int AXIS_X = 1;
+    private static final int AXIS_Z = 3;
+    private static final int AXIS_MINUS_X = AXIS_X | 0x80;
+    private static final int AXIS_MINUS_Z = AXIS_Z | 0x80;
+
+    private final float[] rotationMatrix = new float[9];
+    private final float[] adjustedRotationMatrix = new float[9];
+    private float orientation = 0f;
+    private float pitch = 0f;
+    private float roll = 0f;
+
+    /**
+     * @param rotationVector  - SensorEvent.values from a rotation vector sensor
+     * @param displayRotation - Display.getRotation, so the heading is the way the screen faces
+     * @return - orientation [0-360] in degrees
+     */
+    @SuppressWarnings("SuspiciousNameCombination")
+    public float update(float[] rotationVector, int displayRotation) {
+        getRotationMatrixFromVector(rotationMatrix, rotationVector);
+        final int worldAxisX;
+        final int worldAxisY;
+
+        switch (displayRotation) {
+            case ROTATION_90:
+                worldAxisX = AXIS_Z;
+                worldAxisY = AXIS_MINUS_X;
+                break;
+            case ROTATION_180:
+                worldAxisX = AXIS_MINUS_X;
+                worldAxisY = AXIS_MINUS_Z;
+                break;
+            case ROTATION_270:
+                worldAxisX = AXIS_MINUS_Z;
+                worldAxisY = AXIS_X;
+                break;
+            case ROTATION_0:
+            default:
+                worldAxisX = AXIS_X;
+                worldAxisY = AXIS_Z;
+                break;
+        }
+        remapCoordinateSystem(rotationMatrix, worldAxisX, worldAxisY, adjustedRotationMatrix);
+
+        // azimuth/pitch/roll, as SensorManager.getOrientation
+        float[] r = adjustedRotationMatrix;
+        float azimuth = (float) Math.atan2(r[1], r[4]);
+        pitch = (float) Math.asin(-r[7]);
+        roll = (float) Math.atan2(-r[6], r[8]);
+
+        orientation = ((float) Math.toDegrees(azimuth) + 360f) % 360f;
+        return orientation;
+    }
+
+    /**
+     * Degrees from north, clockwise, as of the last sample
+     */
+    public float getOrientation() {
+        return orientation;
+    }
+
+    /**
+     * Radians, as SensorManager.getOrientation
+     */
+    public float getPitch() {
+        return pitch;
+    }
+
+    /**
+     * Radians, as SensorManager.getOrientation
+     */
+    public float getRoll() {
+        return roll;
+    }
+
+    private static void getRotationMatrixFromVector(float[] R, float[] rotationVector) {
+        float q0;
+        float q1 = rotationVector[0];
+        float q2 = rotationVector[1];
+        float q3 = rotationVector[2];
+
+        if (rotationVector.length >= 4) {
+            q0 = rotationVector[3];
+        } else {
+            q0 = 1 - q1 * q1 - q2 * q2 - q3 * q3;
+            q0 = (q0 > 0) ? (float) Math.sqrt(q0) : 0;
+        }
+
+        float sq_q1 = 2 * q1 * q1;
+        float sq_q2 = 2 * q2 * q2;
+        float sq_q3 = 2 * q3 * q3;
+        float q1_q2 = 2 * q1 * q2;
+        float q3_q0 = 2 * q3 * q0;
+        float q1_q3 = 2 * q1 * q3;
+        float q2_q0 = 2 * q2 * q0;
+        float q2_q3 = 2 * q2 * q3;
+        float q1_q0 = 2 * q1 * q0;
+
+        R[0] = 1 - sq_q2 - sq_q3;
+        R[1] = q1_q2 - q3_q0;
+        R[2] = q1_q3 + q2_q0;
+
+        R[3] = q1_q2 + q3_q0;
+        R[4] = 1 - sq_q1 - sq_q3;
+        R[5] = q2_q3 - q1_q0;
+
+        R[6] = q1_q3 - q2_q0;
+        R[7] = q2_q3 + q1_q0;
+        R[8] = 1 - sq_q1 - sq_q2;
+    }
+
+    /**
+     * Rewrites [inR] with its X and Y axes swapped for [X] and [Y], for a 3x3 matrix.
+     * Z is whichever axis completes a right-handed set.
+     */
+    private static void remapCoordinateSystem(float[] inR, int X, int Y, float[] outR) {
+        int Z = X ^ Y;
+        final int x = (X & 0x3) - 1;
+        final int y = (Y & 0x3) - 1;
+        final int z = (Z & 0x3) - 1;
+
+        // Z is negated unless X, Y, Z are in cyclic order
+        final int axisY = (z + 1) % 3;
+        final int axisZ = (z + 2) % 3;
+        if (((x ^ axisY) | (y ^ axisZ)) != 0)
+            Z ^= 0x80;
+
+        final boolean sx = (X >= 0x80);
+        final boolean sy = (Y >= 0x80);
+        final boolean sz = (Z >= 0x80);
+
+        for (int j = 0; j < 3; j++) {
+            final int offset = j * 3;
+            for (int i = 0; i < 3; i++) {
+                if (x == i) outR[offset + i] = sx ? -inR[offset] : inR[offset];
+                if (y == i) outR[offset + i] = sy ? -inR[offset + 1] : inR[offset + 1];
+                if (z == i) outR[offset + i] = sz ? -inR[offset + 2] : inR[offset + 2];
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package uk.co.appoly.arcorelocation.sensor;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Records the location fixes and rotation vector samples DeviceLocation and DeviceOrientation
+ * receive, so a field session can be replayed later with TraceReplayer.
+ * Start recording with LocationScene.setTraceRecorder.
+ * <p>
+ * The file is a short header, then one record per sample, big-endian:
+ * a type byte, the time it arrived (elapsed realtime nanoseconds), then its values.
+ * A fix is 49 bytes and a rotation sample 27, so an hour at DeviceOrientation's sensor rate
+ * is well under a megabyte.
+ * <p>
+ * Recording runs on the sensor callbacks, so it never throws: the first write error
+ * stops recording, and is kept for getError.
+ */
+public class TraceRecorder implements Closeable {
+
+    static final int MAGIC = 0x41524c54; // "ARLT"
+    static final int VERSION = 1;
+
+    static final byte RUN_START = 1;
+    static final byte LOCATION = 2;
+    static final byte ROTATION = 3;
+
+    private DataOutputStream out;
+    private IOException error;
+    private long recordCount = 0;
+
+    /**
+     * Writes the header straight away. The stream is buffered here, and closed by close.
+     */
+    public TraceRecorder(OutputStream stream) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(stream));
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+    }
+
+    /**
+     * False once closed, or after a write error
+     */
+    public synchronized boolean isRecording() {
+        return out != null;
+    }
+
+    public synchronized IOException getError() {
+        return error;
+    }
+
+    public synchronized long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * When DeviceLocation started the current run, which the filters measure fixes from.
+     */
+    public synchronized void recordRunStart(long timeNanos, long runStartTimeInMillis) {
+        if (out == null)
+            return;
+        try {
+            out.writeByte(RUN_START);
+            out.writeLong(timeNanos);
+            out.writeLong(runStartTimeInMillis);
+            recordCount++;
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * A fix as LocationFilterChain.filter is given it.
+     */
+    public synchronized void recordLocation(long timeNanos, double latitude, double longitude,
+                                            float accuracy, float speed,
+                                            long elapsedRealtimeMillis, long ageMillis) {
+        if (out == null)
+            return;
+        try {
+            out.writeByte(LOCATION);
+            out.writeLong(timeNanos);
+            out.writeDouble(latitude);
+            out.writeDouble(longitude);
+            out.writeFloat(accuracy);
+            out.writeFloat(speed);
+            out.writeLong(elapsedRealtimeMillis);
+            out.writeLong(ageMillis);
+            recordCount++;
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * @param rotationVector  - SensorEvent.values, only the first 4 are kept
+     * @param displayRotation - as RotationVectorOrientation.update
+     */
+    public synchronized void recordRotation(long timeNanos, float[] rotationVector,
+                                            int displayRotation) {
+        if (out == null)
+            return;
+        try {
+            int count = Math.min(rotationVector.length, 4);
+            out.writeByte(ROTATION);
+            out.writeLong(timeNanos);
+            out.writeByte(displayRotation);
+            out.writeByte(count);
+            for (int i = 0; i < count; i++)
+                out.writeFloat(rotationVector[i]);
+            recordCount++;
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    public synchronized void flush() {
+        if (out == null)
+            return;
+        try {
+            out.flush();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (out == null)
+            return;
+        DataOutputStream closing = out;
+        out = null;
+        closing.close();
+    }
+
+    private void fail(IOException e) {
+        error = e;
+        try {
+            out.close();
+        } catch (IOException ignored) {
+        }
+        out = null;
+    }
+}
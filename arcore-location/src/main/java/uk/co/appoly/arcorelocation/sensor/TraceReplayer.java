@@ -0,0 +1,166 @@
+package uk.co.appoly.arcorelocation.sensor;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Plays a TraceRecorder file back through a LocationFilterChain and a RotationVectorOrientation,
+ * the same code DeviceLocation and DeviceOrientation run, so field sessions can be reproduced,
+ * benchmarked and regression tested on a normal JVM.
+ * <p>
+ * Samples are replayed as fast as possible by default, or paced to the times they were recorded.
+ * A trace cut off mid-record, e.g. by the app being killed, replays up to the last whole record.
+ */
+public class TraceReplayer implements Closeable {
+
+    public interface Listener {
+        /**
+         * @param result - what the chain made of the fix
+         */
+        void onLocation(long timeNanos, LocationFilterChain.Result result);
+
+        /**
+         * @param orientation - degrees, as RotationVectorOrientation.getOrientation
+         */
+        void onRotation(long timeNanos, float orientation);
+    }
+
+    private final DataInputStream in;
+    private float speed = 0;
+    private Listener listener;
+    private final float[] rotationVector3 = new float[3];
+    private final float[] rotationVector4 = new float[4];
+
+    /**
+     * Reads the header straight away. The stream is buffered here.
+     *
+     * @throws IOException - if it isn't a trace, or is from a newer version
+     */
+    public TraceReplayer(InputStream stream) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(stream));
+        if (in.readInt() != TraceRecorder.MAGIC)
+            throw new IOException("Not a location trace");
+        int version = in.readUnsignedShort();
+        if (version > TraceRecorder.VERSION)
+            throw new IOException("Unsupported trace version " + version);
+    }
+
+    public float getSpeed() {
+        return speed;
+    }
+
+    /**
+     * @param speed - 1 for the speed it was recorded at, 2 for twice as fast, etc.
+     *              0 (the default) replays as fast as possible
+     */
+    public void setSpeed(float speed) {
+        if (speed < 0)
+            throw new IllegalArgumentException("Speed can't be negative");
+        this.speed = speed;
+    }
+
+    /**
+     * Told the result of every sample as it's replayed
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Replays the rest of the trace. Either of [chain] or [orientation] can be null
+     * to skip those samples.
+     *
+     * @return - records replayed
+     */
+    public long replay(LocationFilterChain chain, RotationVectorOrientation orientation)
+            throws IOException, InterruptedException {
+        long count = 0;
+        long firstTimeNanos = 0;
+        long startNanos = System.nanoTime();
+
+        while (true) {
+            byte type;
+            long timeNanos;
+            try {
+                type = in.readByte();
+                timeNanos = in.readLong();
+            } catch (EOFException e) {
+                break;
+            }
+
+            if (count == 0) {
+                firstTimeNanos = timeNanos;
+                startNanos = System.nanoTime();
+            } else if (speed > 0) {
+                waitUntil(startNanos + (long) ((timeNanos - firstTimeNanos) / speed));
+            }
+
+            try {
+                replayRecord(type, timeNanos, chain, orientation);
+            } catch (EOFException e) {
+                break;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void replayRecord(byte type, long timeNanos, LocationFilterChain chain,
+                              RotationVectorOrientation orientation) throws IOException {
+        switch (type) {
+            case TraceRecorder.RUN_START: {
+                long runStartTimeInMillis = in.readLong();
+                if (chain != null)
+                    chain.setRunStartTime(runStartTimeInMillis);
+                break;
+            }
+            case TraceRecorder.LOCATION: {
+                double latitude = in.readDouble();
+                double longitude = in.readDouble();
+                float accuracy = in.readFloat();
+                float speed = in.readFloat();
+                long elapsedRealtimeMillis = in.readLong();
+                long ageMillis = in.readLong();
+                if (chain != null) {
+                    LocationFilterChain.Result result = chain.filter(latitude, longitude,
+                            accuracy, speed, elapsedRealtimeMillis, ageMillis);
+                    if (listener != null)
+                        listener.onLocation(timeNanos, result);
+                }
+                break;
+            }
+            case TraceRecorder.ROTATION: {
+                int displayRotation = in.readUnsignedByte();
+                int count = in.readUnsignedByte();
+                if (count != 3 && count != 4)
+                    throw new IOException("Rotation vector with " + count + " values");
+                float[] rotationVector = count == 3 ? rotationVector3 : rotationVector4;
+                for (int i = 0; i < count; i++)
+                    rotationVector[i] = in.readFloat();
+                if (orientation != null) {
+                    float degrees = orientation.update(rotationVector, displayRotation);
+                    if (listener != null)
+                        listener.onRotation(timeNanos, degrees);
+                }
+                break;
+            }
+            default:
+                throw new IOException("Unknown trace record type " + type);
+        }
+    }
+
+    private static void waitUntil(long targetNanos) throws InterruptedException {
+        long remaining = targetNanos - System.nanoTime();
+        if (remaining > 0)
+            Thread.sleep(remaining / 1000000, (int) (remaining % 1000000));
+    }
+}
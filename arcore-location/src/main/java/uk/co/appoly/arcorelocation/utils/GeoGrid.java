@@ -0,0 +1,260 @@
+package uk.co.appoly.arcorelocation.utils;
+
+import java.util.Arrays;
+
+/**
+ * Fixed lat/lon grid used to find markers near the device
+ * without measuring the distance to every one of them.
+ * <p>
+ * Ids are bucketed into square cells of [cellSizeDegrees]. A query returns every id
+ * in the cells overlapping the bounding box of a circle, so results are candidates
+ * and still need an exact distance check.
+ * <p>
+ * Cells live in an open-addressed table keyed by a primitive long, so lookups
+ * don't box and a warmed-up grid doesn't allocate while querying.
+ */
+public class GeoGrid {
+
+    // Default cell edge, roughly 1.1km north to south
+    public static final double DEFAULT_CELL_SIZE_DEGREES = 0.01;
+
+    private static final double METRES_PER_DEGREE = 111320;
+    private static final long EMPTY = Long.MIN_VALUE;
+    // Stop longitude cells from getting unbounded near the poles
+    private static final double MAX_QUERY_LATITUDE = 89.9;
+
+    private final double cellSizeDegrees;
+    // Longitude cells are stretched slightly so they wrap exactly at the antimeridian
+    private final double columnSizeDegrees;
+    private final int rows;
+    private final int columns;
+
+    // Hash table: cell key -> index into cellIds/cellSizes
+    private long[] keys;
+    private int[] slots;
+    private int cellCount = 0;
+
+    private int[][] cellIds;
+    private int[] cellSizes;
+    private long[] cellKeys;
+
+    private int size = 0;
+
+    public GeoGrid() {
+        this(DEFAULT_CELL_SIZE_DEGREES);
+    }
+
+    public GeoGrid(double cellSizeDegrees) {
+        if (cellSizeDegrees <= 0 || cellSizeDegrees > 90)
+            throw new IllegalArgumentException("Cell size must be within (0, 90] degrees");
+        this.cellSizeDegrees = cellSizeDegrees;
+        this.rows = (int) Math.ceil(180 / cellSizeDegrees) + 1;
+        this.columns = Math.max(1, (int) Math.round(360 / cellSizeDegrees));
+        this.columnSizeDegrees = 360.0 / columns;
+
+        keys = new long[64];
+        Arrays.fill(keys, EMPTY);
+        slots = new int[64];
+        cellIds = new int[32][];
+        cellSizes = new int[32];
+        cellKeys = new long[32];
+    }
+
+    public double getCellSizeDegrees() {
+        return cellSizeDegrees;
+    }
+
+    /**
+     * Number of ids in the grid
+     */
+    public int size() {
+        return size;
+    }
+
+    public void insert(int id, double latitude, double longitude) {
+        int cell = cellFor(key(row(latitude), column(longitude)), true);
+        int count = cellSizes[cell];
+        int[] ids = cellIds[cell];
+        if (count == ids.length) {
+            ids = Arrays.copyOf(ids, count * 2);
+            cellIds[cell] = ids;
+        }
+        ids[count] = id;
+        cellSizes[cell] = count + 1;
+        size++;
+    }
+
+    /**
+     * Remove an id, [latitude] and [longitude] must be those it was inserted with.
+     *
+     * @return - true if the id was found
+     */
+    public boolean remove(int id, double latitude, double longitude) {
+        int cell = cellFor(key(row(latitude), column(longitude)), false);
+        if (cell < 0)
+            return false;
+
+        int[] ids = cellIds[cell];
+        int count = cellSizes[cell];
+        for (int i = 0; i < count; i++) {
+            if (ids[i] == id) {
+                ids[i] = ids[count - 1];
+                cellSizes[cell] = count - 1;
+                size--;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void move(int id, double oldLatitude, double oldLongitude,
+                     double newLatitude, double newLongitude) {
+        if (row(oldLatitude) == row(newLatitude) && column(oldLongitude) == column(newLongitude))
+            return;
+        remove(id, oldLatitude, oldLongitude);
+        insert(id, newLatitude, newLongitude);
+    }
+
+    public void clear() {
+        Arrays.fill(keys, EMPTY);
+        for (int i = 0; i < cellCount; i++) {
+            cellSizes[i] = 0;
+        }
+        cellCount = 0;
+        size = 0;
+    }
+
+    /**
+     * Adds every id in cells overlapping the circle around [latitude], [longitude]
+     * to [out]. Results can be further away than [radiusMetres].
+     *
+     * @param radiusMetres - search radius, use Double.POSITIVE_INFINITY for everything
+     * @return - the number of ids added
+     */
+    public int query(double latitude, double longitude, double radiusMetres, IntList out) {
+        int before = out.size();
+        if (size == 0)
+            return 0;
+
+        double latitudeRadius = radiusMetres / METRES_PER_DEGREE;
+        int firstRow = Math.max(0, row(latitude - latitudeRadius));
+        int lastRow = Math.min(rows - 1, row(latitude + latitudeRadius));
+
+        double widestLatitude = Math.min(MAX_QUERY_LATITUDE, Math.abs(latitude) + latitudeRadius);
+        double longitudeRadius = radiusMetres
+                / (METRES_PER_DEGREE * Math.cos(Math.toRadians(widestLatitude)));
+
+        int firstColumn;
+        int columnSpan;
+        if (longitudeRadius >= 180) {
+            firstColumn = 0;
+            columnSpan = columns;
+        } else {
+            firstColumn = column(longitude - longitudeRadius);
+            columnSpan = Math.min(columns, column(longitude + longitudeRadius) - firstColumn + 1);
+            if (columnSpan <= 0)
+                columnSpan += columns;
+        }
+
+        long rowSpan = lastRow - firstRow + 1;
+        if (rowSpan * columnSpan > cellCount) {
+            // Fewer occupied cells than cells in range, cheaper to walk them all
+            for (int cell = 0; cell < cellCount; cell++) {
+                long key = cellKeys[cell];
+                int row = (int) (key / columns);
+                int column = (int) (key % columns);
+                int columnOffset = column - firstColumn;
+                if (columnOffset < 0)
+                    columnOffset += columns;
+                if (row >= firstRow && row <= lastRow && columnOffset < columnSpan)
+                    collect(cell, out);
+            }
+        } else {
+            for (int row = firstRow; row <= lastRow; row++) {
+                for (int i = 0; i < columnSpan; i++) {
+                    int column = (firstColumn + i) % columns;
+                    int cell = cellFor(key(row, column), false);
+                    if (cell >= 0)
+                        collect(cell, out);
+                }
+            }
+        }
+        return out.size() - before;
+    }
+
+    private void collect(int cell, IntList out) {
+        int count = cellSizes[cell];
+        int[] ids = cellIds[cell];
+        for (int i = 0; i < count; i++) {
+            out.add(ids[i]);
+        }
+    }
+
+    private int row(double latitude) {
+        return (int) Math.floor((latitude + 90) / cellSizeDegrees);
+    }
+
+    private int column(double longitude) {
+        int column = (int) (Math.floor((longitude + 180) / columnSizeDegrees) % columns);
+        return column < 0 ? column + columns : column;
+    }
+
+    private long key(int row, int column) {
+        return (long) row * columns + column;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Index of the cell for [key], or -1 if it doesn't exist and [create] is false.
+     */
+    private int cellFor(long key, boolean create) {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (keys[i] != EMPTY) {
+            if (keys[i] == key)
+                return slots[i];
+            i = (i + 1) & mask;
+        }
+        if (!create)
+            return -1;
+
+        if (cellCount == cellIds.length) {
+            cellIds = Arrays.copyOf(cellIds, cellCount * 2);
+            cellSizes = Arrays.copyOf(cellSizes, cellCount * 2);
+            cellKeys = Arrays.copyOf(cellKeys, cellCount * 2);
+        }
+        int cell = cellCount++;
+        if (cellIds[cell] == null)
+            cellIds[cell] = new int[4];
+        cellSizes[cell] = 0;
+        cellKeys[cell] = key;
+
+        keys[i] = key;
+        slots[i] = cell;
+        if (cellCount * 2 > keys.length)
+            rehash();
+        return cell;
+    }
+
+    private void rehash() {
+        long[] newKeys = new long[keys.length * 2];
+        int[] newSlots = new int[keys.length * 2];
+        Arrays.fill(newKeys, EMPTY);
+        int mask = newKeys.length - 1;
+        for (int cell = 0; cell < cellCount; cell++) {
+            long key = cellKeys[cell];
+            int i = hash(key) & mask;
+            while (newKeys[i] != EMPTY) {
+                i = (i + 1) & mask;
+            }
+            newKeys[i] = key;
+            newSlots[i] = cell;
+        }
+        keys = newKeys;
+        slots = newSlots;
+    }
+}
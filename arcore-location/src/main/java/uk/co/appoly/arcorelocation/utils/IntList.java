@@ -0,0 +1,100 @@
+package uk.co.appoly.arcorelocation.utils;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of primitive ints.
+ * Used for marker ids so hot paths don't box or allocate once warmed up.
+ */
+public class IntList {
+
+    private int[] values;
+    private int size;
+
+    public IntList() {
+        this(16);
+    }
+
+    public IntList(int initialCapacity) {
+        values = new int[Math.max(1, initialCapacity)];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int get(int index) {
+        if (index >= size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        return values[index];
+    }
+
+    public void set(int index, int value) {
+        if (index >= size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        values[index] = value;
+    }
+
+    public void add(int value) {
+        if (size == values.length)
+            values = Arrays.copyOf(values, size * 2);
+        values[size++] = value;
+    }
+
+    /**
+     * Removes the last value
+     *
+     * @return - the removed value
+     */
+    public int pop() {
+        if (size == 0)
+            throw new IndexOutOfBoundsException("List is empty");
+        return values[--size];
+    }
+
+    /**
+     * Removes the value at [index] by moving the last value into its place.
+     * Order is not preserved.
+     */
+    public void swapRemove(int index) {
+        if (index >= size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        values[index] = values[--size];
+    }
+
+    /**
+     * Removes the first occurrence of [value], order is not preserved.
+     *
+     * @return - true if the value was found
+     */
+    public boolean swapRemoveValue(int value) {
+        for (int i = 0; i < size; i++) {
+            if (values[i] == value) {
+                values[i] = values[--size];
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public void ensureCapacity(int capacity) {
+        if (capacity > values.length)
+            values = Arrays.copyOf(values, Math.max(capacity, values.length * 2));
+    }
+
+    /**
+     * Backing array, valid up to size().
+     * Exposed for tight loops - don't hold on to it across modifications.
+     */
+    public int[] array() {
+        return values;
+    }
+}
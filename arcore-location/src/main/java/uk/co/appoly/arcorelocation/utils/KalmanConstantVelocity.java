@@ -0,0 +1,248 @@
+package uk.co.appoly.arcorelocation.utils;
+
+/**
+ * Kalman filter tracking position and velocity, so it can say where the device
+ * probably is between fixes rather than only where it was at the last one.
+ * <p>
+ * The state is (east, north, east velocity, north velocity), in metres and metres per second
+ * on a flat plane around the first fix, with a full 4x4 covariance. The device is assumed to move
+ * at constant velocity, give or take random acceleration. All state is in fixed arrays,
+ * so updates and predictions don't allocate.
+ * <p>
+ * Unlike KalmanLatLong, velocity is part of the state rather than only widening the uncertainty.
+ */
+public class KalmanConstantVelocity {
+
+    private static final double METRES_PER_DEGREE = 6371 * 1000 * Math.PI / 180;
+    // Beyond this from the origin the flat plane is re-centred, to keep it accurate
+    private static final double MAX_ORIGIN_DISTANCE = 5000;
+    private static final double MIN_ACCURACY = 1;
+
+    // Spectral density of the random acceleration, (m/s^2)^2 per second
+    private final double accelerationNoise;
+    private long maxPredictionMillis = 10 * 1000;
+
+    // Plane origin
+    private boolean initialised = false;
+    private double originLatitude;
+    private double originLongitude;
+    private double metresPerDegreeLongitude;
+
+    private long timeMillis;
+    // x, y, vx, vy
+    private final double[] state = new double[4];
+    // Row-major 4x4
+    private final double[] covariance = new double[16];
+    // Scratch for update(), 4x2
+    private final double[] gain = new double[8];
+
+    /**
+     * @param accelerationNoise - metres per second squared, how hard the device might speed up,
+     *                          slow down or turn between fixes. 1-2 suits walking
+     */
+    public KalmanConstantVelocity(double accelerationNoise) {
+        this.accelerationNoise = accelerationNoise * accelerationNoise;
+    }
+
+    public boolean isInitialised() {
+        return initialised;
+    }
+
+    public void reset() {
+        initialised = false;
+    }
+
+    /**
+     * Predictions further ahead than this from the last fix stop moving, rather than
+     * carrying on at the last velocity forever.
+     */
+    public void setMaxPredictionMillis(long maxPredictionMillis) {
+        this.maxPredictionMillis = maxPredictionMillis;
+    }
+
+    public long getMaxPredictionMillis() {
+        return maxPredictionMillis;
+    }
+
+    /**
+     * Adds a fix: moves the state on to its time, then corrects it by the measurement.
+     *
+     * @param accuracy   - metres, 1 standard deviation
+     * @param timeMillis - time of the fix, any clock as long as predictions use the same one
+     */
+    public void update(double latitude, double longitude, float accuracy, long timeMillis) {
+        double variance = Math.max(accuracy, MIN_ACCURACY);
+        variance *= variance;
+
+        if (!initialised) {
+            setOrigin(latitude, longitude);
+            this.timeMillis = timeMillis;
+            state[0] = 0;
+            state[1] = 0;
+            state[2] = 0;
+            state[3] = 0;
+            for (int i = 0; i < 16; i++)
+                covariance[i] = 0;
+            covariance[0] = variance;
+            covariance[5] = variance;
+            // Speed is unknown, allow for up to ~10m/s
+            covariance[10] = 100;
+            covariance[15] = 100;
+            initialised = true;
+            return;
+        }
+
+        if (timeMillis > this.timeMillis) {
+            double dt = (timeMillis - this.timeMillis) / 1000.0;
+            predictCovariance(dt);
+            state[0] += state[2] * dt;
+            state[1] += state[3] * dt;
+            this.timeMillis = timeMillis;
+        }
+
+        double[] p = covariance;
+        double zx = (longitude - originLongitude) * metresPerDegreeLongitude - state[0];
+        double zy = (latitude - originLatitude) * METRES_PER_DEGREE - state[1];
+
+        // S = H P H^T + R, the top-left 2x2 plus measurement noise, inverted directly
+        double s00 = p[0] + variance;
+        double s01 = p[1];
+        double s10 = p[4];
+        double s11 = p[5] + variance;
+        double determinant = s00 * s11 - s01 * s10;
+        double i00 = s11 / determinant;
+        double i01 = -s01 / determinant;
+        double i10 = -s10 / determinant;
+        double i11 = s00 / determinant;
+
+        // K = P H^T S^-1, H picks the first two columns of P
+        for (int row = 0; row < 4; row++) {
+            double p0 = p[row * 4];
+            double p1 = p[row * 4 + 1];
+            gain[row * 2] = p0 * i00 + p1 * i10;
+            gain[row * 2 + 1] = p0 * i01 + p1 * i11;
+        }
+
+        for (int row = 0; row < 4; row++)
+            state[row] += gain[row * 2] * zx + gain[row * 2 + 1] * zy;
+
+        // P = (I - K H) P. Rows 0 and 1 of P are read before any are written,
+        // since every row's update uses them
+        double r00 = p[0], r01 = p[1], r02 = p[2], r03 = p[3];
+        double r10 = p[4], r11 = p[5], r12 = p[6], r13 = p[7];
+        for (int row = 0; row < 4; row++) {
+            double k0 = gain[row * 2];
+            double k1 = gain[row * 2 + 1];
+            p[row * 4] -= k0 * r00 + k1 * r10;
+            p[row * 4 + 1] -= k0 * r01 + k1 * r11;
+            p[row * 4 + 2] -= k0 * r02 + k1 * r12;
+            p[row * 4 + 3] -= k0 * r03 + k1 * r13;
+        }
+
+        if (Math.abs(state[0]) > MAX_ORIGIN_DISTANCE || Math.abs(state[1]) > MAX_ORIGIN_DISTANCE)
+            recentre();
+    }
+
+    /**
+     * Where the device probably is at [timeMillis], without changing the filter.
+     *
+     * @param out - latitude and longitude are written to out[0] and out[1]
+     * @return - false if there hasn't been a fix yet
+     */
+    public boolean predict(long timeMillis, double[] out) {
+        if (!initialised)
+            return false;
+        double dt = Math.min(timeMillis - this.timeMillis, maxPredictionMillis) / 1000.0;
+        if (dt < 0)
+            dt = 0;
+        out[0] = originLatitude + (state[1] + state[3] * dt) / METRES_PER_DEGREE;
+        out[1] = originLongitude + (state[0] + state[2] * dt) / metresPerDegreeLongitude;
+        return true;
+    }
+
+    /**
+     * Latitude at the last fix, filtered
+     */
+    public double getLatitude() {
+        return originLatitude + state[1] / METRES_PER_DEGREE;
+    }
+
+    /**
+     * Longitude at the last fix, filtered
+     */
+    public double getLongitude() {
+        return originLongitude + state[0] / metresPerDegreeLongitude;
+    }
+
+    /**
+     * Metres per second
+     */
+    public double getVelocityEast() {
+        return state[2];
+    }
+
+    /**
+     * Metres per second
+     */
+    public double getVelocityNorth() {
+        return state[3];
+    }
+
+    /**
+     * Metres, 1 standard deviation, as of the last fix
+     */
+    public double getAccuracy() {
+        return Math.sqrt((covariance[0] + covariance[5]) / 2);
+    }
+
+    public long getTimeMillis() {
+        return timeMillis;
+    }
+
+    /**
+     * P = F P F^T + Q, for F moving each position on by its velocity over [dt]
+     * and Q the random acceleration over that time.
+     */
+    private void predictCovariance(double dt) {
+        double[] p = covariance;
+        // F P: rows 0 and 1 gain dt times rows 2 and 3
+        for (int column = 0; column < 4; column++) {
+            p[column] += dt * p[8 + column];
+            p[4 + column] += dt * p[12 + column];
+        }
+        // (F P) F^T: columns 0 and 1 gain dt times columns 2 and 3
+        for (int row = 0; row < 4; row++) {
+            p[row * 4] += dt * p[row * 4 + 2];
+            p[row * 4 + 1] += dt * p[row * 4 + 3];
+        }
+
+        double q = accelerationNoise;
+        double dt2 = dt * dt;
+        double positionNoise = q * dt2 * dt / 3;
+        double crossNoise = q * dt2 / 2;
+        double velocityNoise = q * dt;
+        p[0] += positionNoise;
+        p[5] += positionNoise;
+        p[2] += crossNoise;
+        p[8] += crossNoise;
+        p[7] += crossNoise;
+        p[13] += crossNoise;
+        p[10] += velocityNoise;
+        p[15] += velocityNoise;
+    }
+
+    private void setOrigin(double latitude, double longitude) {
+        originLatitude = latitude;
+        originLongitude = longitude;
+        metresPerDegreeLongitude = METRES_PER_DEGREE * Math.cos(Math.toRadians(latitude));
+    }
+
+    /**
+     * Moves the plane's origin to the current position. Velocity and covariance carry over.
+     */
+    private void recentre() {
+        setOrigin(getLatitude(), getLongitude());
+        state[0] = 0;
+        state[1] = 0;
+    }
+}
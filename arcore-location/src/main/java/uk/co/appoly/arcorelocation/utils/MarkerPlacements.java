@@ -0,0 +1,390 @@
+package uk.co.appoly.arcorelocation.utils;
+
+import java.util.Arrays;
+
+/**
+ * Where a refresh should put each marker in range, relative to the camera.
+ * <p>
+ * Everything here is plain maths on a snapshot, so it can run off the render thread:
+ * the frame thread calls collect() and sets the view and marker heights, compute() can then
+ * run anywhere, and the frame thread applies the results against that frame's camera pose.
+ */
+public class MarkerPlacements {
+
+    // Markers further away than this are raised rather than pushed further back
+    private static final int MAX_HEIGHT_ADJUSTMENT_DISTANCE = 500;
+    // Label stacking: one degree bins around the compass, in rows [stackSpacing] high
+    private static final int STACK_BINS = 360;
+    private static final int STACK_WORDS = (STACK_BINS + 63) / 64;
+    private static final int STACK_ROWS = 16;
+
+    private final MarkersInRange markersInRange = new MarkersInRange();
+
+    // Snapshot
+    private float[] candidateHeights = new float[16];
+    private float[] candidatePriorities = new float[16];
+    private boolean prioritised = false;
+    private int budget = Integer.MAX_VALUE;
+    private float orientation;
+    private int bearingAdjustment;
+    private int distanceLimit;
+    private float renderDistance;
+    private double approximateWithin;
+    private float stackWidth = 0;
+    private float stackSpacing = 1;
+    private float clusterDegrees = 0;
+    private int clusterDistance = 0;
+
+    // Taken bins of each stacking row, as bitsets
+    private final long[] stackRows = new long[STACK_ROWS * STACK_WORDS];
+    // Cluster heads by bearing, in bins [clusterDegrees] wide, linked through clusterNext[]
+    private int[] clusterBinHeads = new int[0];
+    private int[] clusterNext = new int[16];
+
+    // Results, nearest first
+    private int count = 0;
+    private float[] x = new float[16];
+    private float[] z = new float[16];
+    private float[] heightAdjustments = new float[16];
+    private float[] renderHeights = new float[16];
+    private float[] stackOffsets = new float[16];
+    private int[] clusterSizes = new int[16];
+
+    /**
+     * See MarkersInRange.collect
+     *
+     * @return - number of candidates, each needs a height from setCandidateHeight
+     */
+    public int collect(MarkerStore store, double latitude, double longitude, double radius) {
+        count = 0;
+        int candidateCount = markersInRange.collect(store, latitude, longitude, radius);
+        if (candidateHeights.length < candidateCount) {
+            candidateHeights = new float[Math.max(candidateCount, candidateHeights.length * 2)];
+            candidatePriorities = new float[candidateHeights.length];
+        }
+        prioritised = false;
+        return candidateCount;
+    }
+
+    /**
+     * Id of a candidate from the last collect()
+     */
+    public int getCandidateId(int candidate) {
+        return markersInRange.getCandidateId(candidate);
+    }
+
+    /**
+     * @param height - the marker's height, see LocationMarker.setHeight
+     */
+    public void setCandidateHeight(int candidate, float height) {
+        candidateHeights[candidate] = height;
+    }
+
+    /**
+     * @param priority - see LocationMarker.setPriority
+     */
+    public void setCandidatePriority(int candidate, float priority) {
+        candidatePriorities[candidate] = priority;
+        if (priority != 0)
+            prioritised = true;
+    }
+
+    /**
+     * Only place the [budget] markers in range with the highest priority, nearest first among equals.
+     *
+     * @param budget - Integer.MAX_VALUE for no limit
+     */
+    public void setBudget(int budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Merge distant markers that are nearly in line, seen from the device, into clusters.
+     * Markers further than [beyondMetres] within [degrees] of bearing of a nearer clustered marker
+     * join its cluster instead of being placed. Nearer markers are never clustered,
+     * so clusters split apart as the device approaches.
+     *
+     * @param degrees      - 0 to turn clustering off
+     * @param beyondMetres - real-world distance
+     */
+    public void setClustering(float degrees, int beyondMetres) {
+        this.clusterDegrees = Math.min(degrees, 180);
+        this.clusterDistance = beyondMetres;
+        int binCount = degrees > 0 ? Math.max(1, (int) (360 / this.clusterDegrees)) : 0;
+        if (clusterBinHeads.length != binCount)
+            clusterBinHeads = new int[binCount];
+    }
+
+    /**
+     * @param orientation       - device heading, degrees from north
+     * @param bearingAdjustment - degrees, see LocationScene.setBearingAdjustment
+     * @param distanceLimit     - metres, see LocationScene.setDistanceLimit
+     * @param renderDistance    - metres, markers further away are drawn at this distance
+     * @param approximateWithin - see LocationUtils.distancesAndBearings
+     */
+    public void setView(float orientation, int bearingAdjustment, int distanceLimit,
+                        float renderDistance, double approximateWithin) {
+        this.orientation = orientation;
+        this.bearingAdjustment = bearingAdjustment;
+        this.distanceLimit = distanceLimit;
+        this.renderDistance = renderDistance;
+        this.approximateWithin = approximateWithin;
+    }
+
+    /**
+     * Stack labels that would overlap on top of each other, rather than let them collide.
+     * Labels take up [widthDegrees] of bearing, and are stacked in rows [spacing] metres apart.
+     * Nearer markers are placed first, so they keep the lowest spots.
+     *
+     * @param widthDegrees - 0 to turn stacking off
+     * @param spacing      - metres
+     */
+    public void setStacking(float widthDegrees, float spacing) {
+        this.stackWidth = Math.min(widthDegrees, STACK_BINS);
+        this.stackSpacing = spacing;
+    }
+
+    /**
+     * Measures the collected markers and works out their placements, nearest first.
+     *
+     * @return - number of markers in range, and within the budget
+     */
+    public int compute() {
+        int inRange = markersInRange.measure(approximateWithin);
+        inRange = markersInRange.keepBest(budget, prioritised ? candidatePriorities : null);
+        markersInRange.sortByDistance();
+        ensureCapacity(inRange);
+        Arrays.fill(stackRows, 0);
+        Arrays.fill(clusterBinHeads, -1);
+
+        for (int i = 0; i < inRange; i++) {
+            int markerDistance = (int) Math.round(markersInRange.getDistance(i));
+            float bearing = (float) markersInRange.getBearing(i);
+
+            // Nearest first, so each cluster is placed at its nearest marker
+            clusterSizes[i] = 1;
+            if (clusterDegrees > 0 && markerDistance > clusterDistance) {
+                int head = findCluster(bearing);
+                if (head >= 0) {
+                    clusterSizes[head]++;
+                    clusterSizes[i] = 0;
+                    continue;
+                }
+                addCluster(i, bearing);
+            }
+
+            float markerBearing = bearing - orientation;
+
+            // Bearing adjustment can be set if you are trying to
+            // correct the heading of north - setBearingAdjustment(10)
+            markerBearing = markerBearing + bearingAdjustment + 360;
+            markerBearing = markerBearing % 360;
+
+            double rotation = Math.floor(markerBearing);
+
+            // When pointing device upwards (camera towards sky)
+            // the compass bearing can flip.
+            // In experiments this seems to happen at pitch~=-25
+            //if (deviceOrientation.pitch > -25)
+            //rotation = rotation * Math.PI / 180;
+
+            int renderDistance = markerDistance;
+
+            // Limit the distance of the Anchor within the scene.
+            // Prevents rendering issues.
+            if (renderDistance > distanceLimit)
+                renderDistance = distanceLimit;
+
+            // Adjustment to add markers on horizon, instead of just directly in front of camera
+            float heightAdjustment = 0;
+            // Math.round(renderDistance * (Math.tan(Math.toRadians(deviceOrientation.pitch)))) - 1.5F;
+
+            // Raise distant markers for better illusion of distance
+            // Hacky - but it works as a temporary measure
+            int cappedRealDistance = markerDistance > MAX_HEIGHT_ADJUSTMENT_DISTANCE
+                    ? MAX_HEIGHT_ADJUSTMENT_DISTANCE : markerDistance;
+            if (renderDistance != markerDistance)
+                heightAdjustment += 0.005F * (cappedRealDistance - renderDistance);
+
+            float markerZ = -Math.min(renderDistance, this.renderDistance);
+
+            double rotationRadian = Math.toRadians(rotation);
+
+            z[i] = (float) (markerZ * Math.cos(rotationRadian));
+            x[i] = (float) -(markerZ * Math.sin(rotationRadian));
+            heightAdjustments[i] = heightAdjustment;
+
+            // Locations further than renderDistance are remapped to be rendered closer.
+            // => height differential also has to ensure the remap is correct
+            float height = candidateHeights[markersInRange.getCandidate(i)];
+            if (markerDistance > this.renderDistance) {
+                renderHeights[i] = this.renderDistance * height / markerDistance;
+            } else {
+                renderHeights[i] = height;
+            }
+
+            stackOffsets[i] = stackWidth > 0 ? stack(bearing, renderHeights[i] + heightAdjustment) : 0;
+        }
+        count = inRange;
+        return inRange;
+    }
+
+    /**
+     * Number of markers placed by the last compute()
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Position of the i-th marker among the candidates from collect()
+     */
+    public int getCandidate(int i) {
+        return markersInRange.getCandidate(i);
+    }
+
+    public double getDistance(int i) {
+        return markersInRange.getDistance(i);
+    }
+
+    public double getBearing(int i) {
+        return markersInRange.getBearing(i);
+    }
+
+    /**
+     * Camera-relative offset to the right
+     */
+    public float getX(int i) {
+        return x[i];
+    }
+
+    /**
+     * Camera-relative offset forwards (negative is in front)
+     */
+    public float getZ(int i) {
+        return z[i];
+    }
+
+    /**
+     * Metres to raise the marker above camera height
+     */
+    public float getHeightAdjustment(int i) {
+        return heightAdjustments[i];
+    }
+
+    /**
+     * The marker's height, scaled for its render distance
+     */
+    public float getRenderHeight(int i) {
+        return renderHeights[i];
+    }
+
+    /**
+     * Metres to raise the marker's label so it doesn't overlap a nearer one
+     */
+    public float getStackOffset(int i) {
+        return stackOffsets[i];
+    }
+
+    /**
+     * How many markers the i-th marker stands for, see setClustering
+     *
+     * @return - 1 if it isn't clustered, more for the nearest marker of a cluster,
+     * or 0 if it has joined a cluster and shouldn't be placed
+     */
+    public int getClusterSize(int i) {
+        return clusterSizes[i];
+    }
+
+    /**
+     * Nearer clustered marker within [clusterDegrees] of [bearing], in this bin or its neighbours
+     *
+     * @return - its position, or -1
+     */
+    private int findCluster(float bearing) {
+        int binCount = clusterBinHeads.length;
+        int bin = clusterBin(bearing);
+        int head = findCluster(bearing, bin);
+        if (head < 0 && binCount > 1)
+            head = findCluster(bearing, (bin + 1) % binCount);
+        if (head < 0 && binCount > 2)
+            head = findCluster(bearing, (bin + binCount - 1) % binCount);
+        return head;
+    }
+
+    private int findCluster(float bearing, int bin) {
+        for (int j = clusterBinHeads[bin]; j >= 0; j = clusterNext[j]) {
+            float difference = Math.abs(bearing - (float) markersInRange.getBearing(j));
+            if (difference > 180)
+                difference = 360 - difference;
+            if (difference < clusterDegrees)
+                return j;
+        }
+        return -1;
+    }
+
+    private void addCluster(int i, float bearing) {
+        int bin = clusterBin(bearing);
+        clusterNext[i] = clusterBinHeads[bin];
+        clusterBinHeads[bin] = i;
+    }
+
+    private int clusterBin(float bearing) {
+        int binCount = clusterBinHeads.length;
+        float normalised = ((bearing % 360) + 360) % 360;
+        return Math.min(binCount - 1, (int) (normalised / 360 * binCount));
+    }
+
+    /**
+     * Greedy packing: finds the lowest row, from the label's own height up, where
+     * its bearing interval is free, and takes it.
+     *
+     * @return - metres above its own height
+     */
+    private float stack(float bearing, float height) {
+        int firstBin = (int) Math.floor(bearing - stackWidth / 2);
+        int width = Math.max(1, (int) Math.ceil(stackWidth));
+        int baseRow = Math.round(height / stackSpacing);
+        baseRow = Math.max(0, Math.min(STACK_ROWS - 1, baseRow));
+
+        for (int row = baseRow; row < STACK_ROWS; row++) {
+            if (isStackFree(row, firstBin, width)) {
+                takeStack(row, firstBin, width);
+                return (row - baseRow) * stackSpacing;
+            }
+        }
+        // Out of rows, share the top one
+        return (STACK_ROWS - 1 - baseRow) * stackSpacing;
+    }
+
+    private boolean isStackFree(int row, int firstBin, int width) {
+        int offset = row * STACK_WORDS;
+        for (int i = 0; i < width; i++) {
+            int bin = ((firstBin + i) % STACK_BINS + STACK_BINS) % STACK_BINS;
+            if ((stackRows[offset + (bin >>> 6)] & (1L << (bin & 63))) != 0)
+                return false;
+        }
+        return true;
+    }
+
+    private void takeStack(int row, int firstBin, int width) {
+        int offset = row * STACK_WORDS;
+        for (int i = 0; i < width; i++) {
+            int bin = ((firstBin + i) % STACK_BINS + STACK_BINS) % STACK_BINS;
+            stackRows[offset + (bin >>> 6)] |= 1L << (bin & 63);
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (x.length < capacity) {
+            int newCapacity = Math.max(capacity, x.length * 2);
+            x = new float[newCapacity];
+            z = new float[newCapacity];
+            heightAdjustments = new float[newCapacity];
+            renderHeights = new float[newCapacity];
+            stackOffsets = new float[newCapacity];
+            clusterSizes = new int[newCapacity];
+            clusterNext = new int[newCapacity];
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package uk.co.appoly.arcorelocation.utils;
+
+import java.util.Arrays;
+
+/**
+ * Dense struct-of-arrays storage for marker positions.
+ * <p>
+ * Each marker gets a stable int id when added. Its data lives at an index in
+ * parallel primitive arrays, which are kept packed (removal moves the last marker
+ * into the gap), so a pass over every marker is one linear walk with no pointer chasing.
+ * <p>
+ * Positions are also kept in a GeoGrid so callers can ask for just the markers near a point.
+ */
+public class MarkerStore {
+
+    private static final int UNBOUNDED = Integer.MAX_VALUE;
+
+    // Packed data, valid up to size
+    private double[] latitudes;
+    private double[] longitudes;
+    private int[] renderWithin;
+    private int[] ids;
+    private int size = 0;
+
+    // id -> index, or -1 when the id is free
+    private int[] indexOfId;
+    private final IntList freeIds = new IntList();
+    private int idCount = 0;
+
+    private final GeoGrid grid;
+
+    // Markers without a render limit, and the largest limit of the rest
+    private int unboundedCount = 0;
+    private int maxRenderWithin = 0;
+    private boolean maxRenderWithinDirty = false;
+
+    // Goes up every time a marker moves
+    private int positionVersion = 0;
+
+    public MarkerStore() {
+        this(new GeoGrid(), 16);
+    }
+
+    public MarkerStore(GeoGrid grid, int initialCapacity) {
+        this.grid = grid;
+        int capacity = Math.max(1, initialCapacity);
+        latitudes = new double[capacity];
+        longitudes = new double[capacity];
+        renderWithin = new int[capacity];
+        ids = new int[capacity];
+        indexOfId = new int[capacity];
+    }
+
+    /**
+     * @param renderWithin - metres the device must be within for the marker to render,
+     *                     Integer.MAX_VALUE for no limit
+     * @return - the new marker's id
+     */
+    public int add(double latitude, double longitude, int renderWithin) {
+        int id;
+        if (!freeIds.isEmpty()) {
+            id = freeIds.pop();
+        } else {
+            if (idCount == indexOfId.length)
+                indexOfId = Arrays.copyOf(indexOfId, idCount * 2);
+            id = idCount++;
+        }
+
+        if (size == latitudes.length) {
+            int capacity = size * 2;
+            latitudes = Arrays.copyOf(latitudes, capacity);
+            longitudes = Arrays.copyOf(longitudes, capacity);
+            this.renderWithin = Arrays.copyOf(this.renderWithin, capacity);
+            ids = Arrays.copyOf(ids, capacity);
+        }
+
+        int index = size++;
+        latitudes[index] = latitude;
+        longitudes[index] = longitude;
+        this.renderWithin[index] = renderWithin;
+        ids[index] = id;
+        indexOfId[id] = index;
+
+        grid.insert(id, latitude, longitude);
+        remember(renderWithin);
+        return id;
+    }
+
+    public void remove(int id) {
+        int index = indexOf(id);
+        grid.remove(id, latitudes[index], longitudes[index]);
+        forget(renderWithin[index]);
+
+        // Keep the arrays packed by moving the last marker into the gap
+        int last = --size;
+        if (index != last) {
+            latitudes[index] = latitudes[last];
+            longitudes[index] = longitudes[last];
+            renderWithin[index] = renderWithin[last];
+            ids[index] = ids[last];
+            indexOfId[ids[index]] = index;
+        }
+        indexOfId[id] = -1;
+        freeIds.add(id);
+    }
+
+    public void clear() {
+        grid.clear();
+        Arrays.fill(indexOfId, 0, idCount, -1);
+        freeIds.clear();
+        idCount = 0;
+        size = 0;
+        unboundedCount = 0;
+        maxRenderWithin = 0;
+        maxRenderWithinDirty = false;
+    }
+
+    public void setPosition(int id, double latitude, double longitude) {
+        int index = indexOf(id);
+        grid.move(id, latitudes[index], longitudes[index], latitude, longitude);
+        latitudes[index] = latitude;
+        longitudes[index] = longitude;
+        positionVersion++;
+    }
+
+    public void setRenderWithin(int id, int renderWithin) {
+        int index = indexOf(id);
+        forget(this.renderWithin[index]);
+        this.renderWithin[index] = renderWithin;
+        remember(renderWithin);
+    }
+
+    public double getLatitude(int id) {
+        return latitudes[indexOf(id)];
+    }
+
+    public double getLongitude(int id) {
+        return longitudes[indexOf(id)];
+    }
+
+    public int getRenderWithin(int id) {
+        return renderWithin[indexOf(id)];
+    }
+
+    /**
+     * Changes whenever setPosition moves a marker, so distances
+     * worked out from the store can tell when they're stale.
+     */
+    public int getPositionVersion() {
+        return positionVersion;
+    }
+
+    /**
+     * Number of markers, and the valid length of the arrays below.
+     */
+    public int size() {
+        return size;
+    }
+
+    public int indexOf(int id) {
+        int index = id < idCount ? indexOfId[id] : -1;
+        if (index < 0)
+            throw new IllegalArgumentException("Unknown marker id " + id);
+        return index;
+    }
+
+    // Backing arrays, indexed by indexOf(id) and valid up to size().
+    // Exposed for tight loops - don't hold on to them across adds or removes.
+
+    public double[] latitudes() {
+        return latitudes;
+    }
+
+    public double[] longitudes() {
+        return longitudes;
+    }
+
+    public int[] renderWithin() {
+        return renderWithin;
+    }
+
+    public int[] ids() {
+        return ids;
+    }
+
+    /**
+     * Collects the ids of markers that could be within [radius] metres of the given
+     * position, taking each marker's render limit into account.
+     * Results still need an exact distance check.
+     *
+     * @return - number of ids added to [out]
+     */
+    public int query(double latitude, double longitude, double radius, IntList out) {
+        double queryRadius = radius;
+        if (unboundedCount == 0)
+            queryRadius = Math.min(queryRadius, getMaxRenderWithin());
+
+        if (Double.isInfinite(queryRadius) || queryRadius >= UNBOUNDED) {
+            out.ensureCapacity(out.size() + size);
+            for (int i = 0; i < size; i++) {
+                out.add(ids[i]);
+            }
+            return size;
+        }
+        return grid.query(latitude, longitude, queryRadius, out);
+    }
+
+    private void remember(int renderWithin) {
+        if (renderWithin == UNBOUNDED) {
+            unboundedCount++;
+        } else if (renderWithin > maxRenderWithin) {
+            maxRenderWithin = renderWithin;
+        }
+    }
+
+    private void forget(int renderWithin) {
+        if (renderWithin == UNBOUNDED) {
+            unboundedCount--;
+        } else if (renderWithin >= maxRenderWithin) {
+            // Recalculated next time it's needed
+            maxRenderWithinDirty = true;
+        }
+    }
+
+    private int getMaxRenderWithin() {
+        if (maxRenderWithinDirty) {
+            maxRenderWithin = 0;
+            for (int i = 0; i < size; i++) {
+                if (renderWithin[i] != UNBOUNDED && renderWithin[i] > maxRenderWithin)
+                    maxRenderWithin = renderWithin[i];
+            }
+            maxRenderWithinDirty = false;
+        }
+        return maxRenderWithin;
+    }
+}
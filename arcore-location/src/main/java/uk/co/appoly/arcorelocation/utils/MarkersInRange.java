@@ -0,0 +1,276 @@
+package uk.co.appoly.arcorelocation.utils;
+
+import java.util.Arrays;
+
+/**
+ * Finds the markers in a MarkerStore that should be rendered from a given position,
+ * with their distance and bearing. This is the geometry half of a LocationScene refresh.
+ * <p>
+ * It runs in two steps. collect() asks the store's grid for candidates and copies their
+ * positions, so measure() only works on that copy and can run on another thread while
+ * the store keeps changing. find() does both.
+ * <p>
+ * Results are held in arrays reused between calls, valid up to getCount().
+ */
+public class MarkersInRange {
+
+    private final IntList candidates = new IntList();
+    // Snapshot of the candidates, taken by collect()
+    private double[] candidateLatitudes = new double[16];
+    private double[] candidateLongitudes = new double[16];
+    private int[] candidateRenderWithin = new int[16];
+    private double latitude;
+    private double longitude;
+    private double radius;
+
+    private int count = 0;
+    private int[] ids = new int[16];
+    private int[] indices = new int[16];
+    private double[] distances = new double[16];
+    private double[] bearings = new double[16];
+
+    // Used while sorting, then swapped with the arrays above
+    private long[] sortKeys = new long[16];
+    private int[] sortedIds = new int[16];
+    private int[] sortedIndices = new int[16];
+    private double[] sortedDistances = new double[16];
+    private double[] sortedBearings = new double[16];
+    // Used by keepBest
+    private int[] heap = new int[16];
+
+    /**
+     * collect() then measure()
+     *
+     * @return - number of markers in range
+     */
+    public int find(MarkerStore store, double latitude, double longitude,
+                    double radius, double approximateWithin) {
+        collect(store, latitude, longitude, radius);
+        return measure(approximateWithin);
+    }
+
+    /**
+     * Takes a copy of the markers that could be in range.
+     *
+     * @param radius - metres, markers further away are left out
+     *               as well as those outside their own render limit
+     * @return - number of candidates
+     */
+    public int collect(MarkerStore store, double latitude, double longitude, double radius) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.radius = radius;
+
+        // Only visit markers in grid cells that could be within range
+        candidates.clear();
+        store.query(latitude, longitude, radius, candidates);
+
+        int candidateCount = candidates.size();
+        int[] candidateIds = candidates.array();
+        ensureCapacity(candidateCount);
+        double[] latitudes = store.latitudes();
+        double[] longitudes = store.longitudes();
+        int[] renderWithin = store.renderWithin();
+        for (int i = 0; i < candidateCount; i++) {
+            int index = store.indexOf(candidateIds[i]);
+            candidateLatitudes[i] = latitudes[index];
+            candidateLongitudes[i] = longitudes[index];
+            candidateRenderWithin[i] = renderWithin[index];
+        }
+        count = 0;
+        return candidateCount;
+    }
+
+    /**
+     * Measures the candidates from the last collect(), keeping those in range.
+     * Doesn't touch the store.
+     *
+     * @param approximateWithin - see LocationUtils.distancesAndBearings
+     * @return - number of markers in range
+     */
+    public int measure(double approximateWithin) {
+        int candidateCount = candidates.size();
+        int[] candidateIds = candidates.array();
+        LocationUtils.distancesAndBearings(latitude, longitude,
+                candidateLatitudes, candidateLongitudes, candidateCount,
+                distances, bearings, approximateWithin);
+
+        // Compact down to the markers in range
+        count = 0;
+        for (int i = 0; i < candidateCount; i++) {
+            int markerDistance = (int) Math.round(distances[i]);
+            if (markerDistance > candidateRenderWithin[i] || markerDistance > radius)
+                continue;
+
+            ids[count] = candidateIds[i];
+            indices[count] = i;
+            distances[count] = distances[i];
+            bearings[count] = bearings[i];
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Keeps only the [limit] best results of the last find(): highest priority first, then nearest.
+     * Picked with a bounded heap, so O(n log limit). Results stay in their previous order.
+     *
+     * @param candidatePriorities - by candidate, as getCandidate, or null to go by distance alone
+     * @return - number of results kept
+     */
+    public int keepBest(int limit, float[] candidatePriorities) {
+        if (count <= limit)
+            return count;
+        if (limit <= 0) {
+            count = 0;
+            return 0;
+        }
+
+        // Heap of result positions, worst at the top, so the worst kept result is the one replaced
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            if (size < limit) {
+                int child = size++;
+                while (child > 0) {
+                    int parent = (child - 1) / 2;
+                    if (!isWorse(i, heap[parent], candidatePriorities))
+                        break;
+                    heap[child] = heap[parent];
+                    child = parent;
+                }
+                heap[child] = i;
+            } else if (isWorse(heap[0], i, candidatePriorities)) {
+                int parent = 0;
+                while (true) {
+                    int child = parent * 2 + 1;
+                    if (child >= size)
+                        break;
+                    if (child + 1 < size && isWorse(heap[child + 1], heap[child], candidatePriorities))
+                        child++;
+                    if (!isWorse(heap[child], i, candidatePriorities))
+                        break;
+                    heap[parent] = heap[child];
+                    parent = child;
+                }
+                heap[parent] = i;
+            }
+        }
+
+        // Compact in place - kept positions are in order, so each one moves down, never up
+        Arrays.sort(heap, 0, size);
+        for (int k = 0; k < size; k++) {
+            int i = heap[k];
+            ids[k] = ids[i];
+            indices[k] = indices[i];
+            distances[k] = distances[i];
+            bearings[k] = bearings[i];
+        }
+        count = size;
+        return count;
+    }
+
+    private boolean isWorse(int a, int b, float[] candidatePriorities) {
+        if (candidatePriorities != null) {
+            float priorityA = candidatePriorities[indices[a]];
+            float priorityB = candidatePriorities[indices[b]];
+            if (priorityA != priorityB)
+                return priorityA < priorityB;
+        }
+        if (distances[a] != distances[b])
+            return distances[a] > distances[b];
+        return a > b;
+    }
+
+    /**
+     * Reorders the results of the last find() nearest first.
+     */
+    public void sortByDistance() {
+        // Centimetres in the high bits, position in the low bits,
+        // so a primitive sort orders by distance without boxing
+        for (int i = 0; i < count; i++) {
+            long centimetres = Math.min(Integer.MAX_VALUE, Math.round(distances[i] * 100));
+            sortKeys[i] = (centimetres << 32) | i;
+        }
+        Arrays.sort(sortKeys, 0, count);
+
+        for (int k = 0; k < count; k++) {
+            int i = (int) sortKeys[k];
+            sortedIds[k] = ids[i];
+            sortedIndices[k] = indices[i];
+            sortedDistances[k] = distances[i];
+            sortedBearings[k] = bearings[i];
+        }
+
+        int[] swapIds = ids;
+        ids = sortedIds;
+        sortedIds = swapIds;
+        int[] swapIndices = indices;
+        indices = sortedIndices;
+        sortedIndices = swapIndices;
+        double[] swapDistances = distances;
+        distances = sortedDistances;
+        sortedDistances = swapDistances;
+        double[] swapBearings = bearings;
+        bearings = sortedBearings;
+        sortedBearings = swapBearings;
+    }
+
+    /**
+     * Number of markers found by the last find()
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Number of markers the grid handed over to be measured by the last collect()
+     */
+    public int getCandidateCount() {
+        return candidates.size();
+    }
+
+    /**
+     * Id of a candidate from the last collect()
+     */
+    public int getCandidateId(int candidate) {
+        return candidates.get(candidate);
+    }
+
+    public int getId(int i) {
+        return ids[i];
+    }
+
+    /**
+     * Position of the i-th result among the candidates from collect()
+     */
+    public int getCandidate(int i) {
+        return indices[i];
+    }
+
+    public double getDistance(int i) {
+        return distances[i];
+    }
+
+    public double getBearing(int i) {
+        return bearings[i];
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (ids.length < capacity) {
+            int newCapacity = Math.max(capacity, ids.length * 2);
+            ids = new int[newCapacity];
+            indices = new int[newCapacity];
+            distances = new double[newCapacity];
+            bearings = new double[newCapacity];
+            candidateLatitudes = new double[newCapacity];
+            candidateLongitudes = new double[newCapacity];
+            candidateRenderWithin = new int[newCapacity];
+            sortKeys = new long[newCapacity];
+            sortedIds = new int[newCapacity];
+            sortedIndices = new int[newCapacity];
+            sortedDistances = new double[newCapacity];
+            sortedBearings = new double[newCapacity];
+            heap = new int[newCapacity];
+        }
+    }
+}
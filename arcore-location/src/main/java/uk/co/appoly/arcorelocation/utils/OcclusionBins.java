@@ -0,0 +1,123 @@
+package uk.co.appoly.arcorelocation.utils;
+
+import java.util.Arrays;
+
+/**
+ * Decides which markers are hidden behind nearer ones, for LocationScene.setRemoveOverlapping.
+ * <p>
+ * Markers are added as vectors from the camera, and compared by direction: azimuth and
+ * elevation. Whether one marker covers another doesn't depend on where the camera is
+ * pointing, only on where it is. Markers are sorted nearest first, and each one is kept
+ * if no nearer kept marker is within [overlapDegrees] of it in both directions.
+ * Kept markers go into azimuth bins [overlapDegrees] wide, so each check only looks at
+ * the neighbouring bins - O(n log n) overall rather than a ray cast per pair.
+ */
+public class OcclusionBins {
+
+    private final float overlapDegrees;
+    private final int binCount;
+    // Head of each bin's list of kept markers, linked through next[]
+    private final int[] binHeads;
+
+    private int count = 0;
+    private float[] azimuths = new float[16];
+    private float[] elevations = new float[16];
+    private float[] distances = new float[16];
+    private int[] next = new int[16];
+    private boolean[] visible = new boolean[16];
+    private long[] sortKeys = new long[16];
+
+    /**
+     * @param overlapDegrees - markers closer together than this, as seen from the camera, overlap
+     */
+    public OcclusionBins(float overlapDegrees) {
+        if (overlapDegrees <= 0 || overlapDegrees > 180)
+            throw new IllegalArgumentException("Overlap must be within (0, 180] degrees");
+        this.overlapDegrees = overlapDegrees;
+        this.binCount = Math.max(1, (int) (360 / overlapDegrees));
+        this.binHeads = new int[binCount];
+    }
+
+    public float getOverlapDegrees() {
+        return overlapDegrees;
+    }
+
+    public void clear() {
+        count = 0;
+    }
+
+    /**
+     * Adds a marker, [dx], [dy], [dz] being its offset from the camera in world space.
+     *
+     * @return - the marker's index, for isVisible
+     */
+    public int add(float dx, float dy, float dz) {
+        if (count == azimuths.length) {
+            int capacity = count * 2;
+            azimuths = Arrays.copyOf(azimuths, capacity);
+            elevations = Arrays.copyOf(elevations, capacity);
+            distances = Arrays.copyOf(distances, capacity);
+            next = new int[capacity];
+            visible = new boolean[capacity];
+            sortKeys = new long[capacity];
+        }
+
+        float horizontal = (float) Math.sqrt(dx * dx + dz * dz);
+        int i = count++;
+        // World -z is forward, any fixed reference will do
+        azimuths[i] = (float) ((Math.toDegrees(Math.atan2(dx, -dz)) + 360) % 360);
+        elevations[i] = (float) Math.toDegrees(Math.atan2(dy, horizontal));
+        distances[i] = (float) Math.sqrt(horizontal * horizontal + dy * dy);
+        return i;
+    }
+
+    /**
+     * Works out which of the added markers are visible.
+     */
+    public void resolve() {
+        // Millimetres in the high bits, index in the low bits, so a primitive sort orders by distance
+        for (int i = 0; i < count; i++) {
+            long millimetres = Math.min(Integer.MAX_VALUE, Math.round(distances[i] * 1000));
+            sortKeys[i] = (millimetres << 32) | i;
+        }
+        Arrays.sort(sortKeys, 0, count);
+        Arrays.fill(binHeads, -1);
+
+        for (int k = 0; k < count; k++) {
+            int i = (int) sortKeys[k];
+            int bin = Math.min(binCount - 1, (int) (azimuths[i] / 360 * binCount));
+
+            boolean covered = isCovered(i, bin)
+                    || (binCount > 1 && isCovered(i, (bin + 1) % binCount))
+                    || (binCount > 2 && isCovered(i, (bin + binCount - 1) % binCount));
+            visible[i] = !covered;
+            if (!covered) {
+                next[i] = binHeads[bin];
+                binHeads[bin] = i;
+            }
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public boolean isVisible(int i) {
+        return visible[i];
+    }
+
+    /**
+     * Whether a kept marker in [bin] is within the overlap of marker [i]
+     */
+    private boolean isCovered(int i, int bin) {
+        for (int j = binHeads[bin]; j >= 0; j = next[j]) {
+            float azimuthDifference = Math.abs(azimuths[i] - azimuths[j]);
+            if (azimuthDifference > 180)
+                azimuthDifference = 360 - azimuthDifference;
+            if (azimuthDifference < overlapDegrees
+                    && Math.abs(elevations[i] - elevations[j]) < overlapDegrees)
+                return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,70 @@
+package uk.co.appoly.arcorelocation.utils;
+
+/**
+ * Quaternion maths for per-frame node updates, on plain floats so nothing is allocated.
+ */
+public class QuaternionUtils {
+
+    /**
+     * Quaternion.lookRotation(forward, Vector3.up()), written into [out] as x, y, z, w.
+     * Like Sceneform, the rotation takes the node's forward (-Z) to [forward], keeping Y
+     * as close to up as it can.
+     *
+     * @param out - at least 4 long
+     */
+    public static void lookRotation(float forwardX, float forwardY, float forwardZ, float[] out) {
+        float length = (float) Math.sqrt(forwardX * forwardX + forwardY * forwardY + forwardZ * forwardZ);
+        if (length == 0) {
+            out[0] = 0;
+            out[1] = 0;
+            out[2] = 0;
+            out[3] = 1;
+            return;
+        }
+        float fx = forwardX / length;
+        float fy = forwardY / length;
+        float fz = forwardZ / length;
+
+        // right = forward x up, up = right x forward
+        float rx = -fz;
+        float rz = fx;
+        float rightLength = (float) Math.sqrt(rx * rx + rz * rz);
+        if (rightLength < 1e-6F) {
+            // Looking straight up or down, any right will do
+            rx = 1;
+            rz = 0;
+        } else {
+            rx /= rightLength;
+            rz /= rightLength;
+        }
+        float ux = -rz * fy;
+        float uy = rz * fx - rx * fz;
+        float uz = rx * fy;
+
+        // Rotation matrix columns are right, up, back (-forward)
+        float bx = -fx;
+        float by = -fy;
+        float bz = -fz;
+        float trace = rx + uy + bz;
+        if (trace > 0) {
+            float s = 0.5F / (float) Math.sqrt(trace + 1);
+            set(out, (uz - by) * s, (bx - rz) * s, -ux * s, 0.25F / s);
+        } else if (rx > uy && rx > bz) {
+            float s = 2 * (float) Math.sqrt(1 + rx - uy - bz);
+            set(out, 0.25F * s, ux / s, (bx + rz) / s, (uz - by) / s);
+        } else if (uy > bz) {
+            float s = 2 * (float) Math.sqrt(1 + uy - rx - bz);
+            set(out, ux / s, 0.25F * s, (by + uz) / s, (bx - rz) / s);
+        } else {
+            float s = 2 * (float) Math.sqrt(1 + bz - rx - uy);
+            set(out, (bx + rz) / s, (by + uz) / s, 0.25F * s, -ux / s);
+        }
+    }
+
+    private static void set(float[] out, float x, float y, float z, float w) {
+        out[0] = x;
+        out[1] = y;
+        out[2] = z;
+        out[3] = w;
+    }
+}
@@ -0,0 +1,259 @@
+package uk.co.appoly.arcorelocation.utils;
+
+/**
+ * Dead reckoning between GPS fixes from ARCore's camera tracking.
+ * <p>
+ * ARCore tracks how far the camera has moved very precisely, but in its own world space,
+ * whose axes don't line up with north. The compass gives the camera's heading, so
+ * the difference between the two headings turns camera movement into east/north metres.
+ * That offset is averaged over many frames, since the compass is noisy.
+ * <p>
+ * The fused position moves with the camera every frame. Each GPS fix pulls it towards the fix,
+ * weighted by how far each can be trusted: the fix by its accuracy, dead reckoning by
+ * how far it has carried the position since (it drifts with distance, mostly from heading error).
+ * <p>
+ * Positions are metres on a flat plane around the first fix.
+ */
+public class VisualInertialFusion {
+
+    private static final double METRES_PER_DEGREE = 6371 * 1000 * Math.PI / 180;
+    // Beyond this from the origin the flat plane is re-centred, to keep it accurate
+    private static final double MAX_ORIGIN_DISTANCE = 5000;
+    private static final double MIN_ACCURACY = 1;
+
+    // Dead reckoning error, as a fraction of the distance moved
+    private float driftRate = 0.05F;
+    // How much of the way each compass reading moves the heading offset
+    private float headingSmoothing = 0.02F;
+    // Version only goes up once the position has moved this far
+    private float versionDistance = 0.25F;
+
+    private boolean initialised = false;
+    private double originLatitude;
+    private double originLongitude;
+    private double metresPerDegreeLongitude;
+
+    // Fused position, and its variance in square metres
+    private double east;
+    private double north;
+    private double variance;
+    private int version = 0;
+    private double versionEast;
+    private double versionNorth;
+
+    // Heading of ARCore's world -Z axis from north, as a smoothed unit vector
+    private boolean hasHeading = false;
+    private double offsetSin;
+    private double offsetCos;
+
+    // Camera position last frame, in ARCore world space
+    private boolean hasPose = false;
+    private float lastX;
+    private float lastZ;
+    private double movedSinceFix;
+
+    public boolean isInitialised() {
+        return initialised;
+    }
+
+    public void reset() {
+        initialised = false;
+        hasHeading = false;
+        hasPose = false;
+    }
+
+    public float getDriftRate() {
+        return driftRate;
+    }
+
+    /**
+     * How quickly dead reckoning is trusted less as it carries the position further from a fix.
+     *
+     * @param driftRate - error as a fraction of distance moved, 0.05 by default
+     */
+    public void setDriftRate(float driftRate) {
+        this.driftRate = driftRate;
+    }
+
+    /**
+     * @param headingSmoothing - (0, 1], how far each compass reading moves the heading offset.
+     *                         Smaller is steadier, but slower to settle. 0.02 by default
+     */
+    public void setHeadingSmoothing(float headingSmoothing) {
+        this.headingSmoothing = headingSmoothing;
+    }
+
+    /**
+     * @param versionDistance - metres the position has to move before getVersion changes
+     */
+    public void setVersionDistance(float versionDistance) {
+        this.versionDistance = versionDistance;
+    }
+
+    /**
+     * Lines ARCore's world up with north, from where the camera is pointing in each.
+     * Call every frame, before updatePose. Readings with the camera pointing
+     * nearly straight up or down are ignored, as its heading isn't meaningful.
+     *
+     * @param compassHeading - degrees from north, as DeviceOrientation.getOrientation
+     * @param forwardX       - the camera's forward direction, in ARCore world space
+     * @param forwardZ
+     */
+    public void updateHeading(float compassHeading, float forwardX, float forwardZ) {
+        double horizontal = Math.sqrt(forwardX * forwardX + forwardZ * forwardZ);
+        if (horizontal < 0.5)
+            return;
+
+        // Camera heading in ARCore world, clockwise from -Z looking down
+        double worldHeading = Math.atan2(forwardX, -forwardZ);
+        double offset = Math.toRadians(compassHeading) - worldHeading;
+        double sin = Math.sin(offset);
+        double cos = Math.cos(offset);
+        if (!hasHeading) {
+            offsetSin = sin;
+            offsetCos = cos;
+            hasHeading = true;
+            return;
+        }
+
+        // Average on the unit circle, so 359 and 1 degrees average to 0, not 180
+        offsetSin += (sin - offsetSin) * headingSmoothing;
+        offsetCos += (cos - offsetCos) * headingSmoothing;
+        double length = Math.sqrt(offsetSin * offsetSin + offsetCos * offsetCos);
+        if (length > 0) {
+            offsetSin /= length;
+            offsetCos /= length;
+        }
+    }
+
+    /**
+     * Moves the fused position by how far the camera has moved since the last call.
+     *
+     * @param x - camera position in ARCore world space
+     * @param z
+     */
+    public void updatePose(float x, float z) {
+        if (hasPose && hasHeading && initialised) {
+            double dx = x - lastX;
+            double forward = -(z - lastZ);
+            // Rotate from ARCore's world into east/north by the heading offset
+            double dEast = dx * offsetCos + forward * offsetSin;
+            double dNorth = -dx * offsetSin + forward * offsetCos;
+            east += dEast;
+            north += dNorth;
+
+            // Error grows with the distance since the fix, (rate * distance)^2
+            double moved = Math.sqrt(dx * dx + forward * forward);
+            double drift = driftRate * moved;
+            variance += drift * drift + 2 * driftRate * movedSinceFix * drift;
+            movedSinceFix += moved;
+            updateVersion();
+        }
+        lastX = x;
+        lastZ = z;
+        hasPose = true;
+    }
+
+    /**
+     * Call when ARCore stops tracking - camera movement can't be trusted until it resumes,
+     * and its world may have moved.
+     */
+    public void lostTracking() {
+        hasPose = false;
+        hasHeading = false;
+    }
+
+    /**
+     * Pulls the fused position towards a GPS fix, weighted by their accuracies.
+     *
+     * @param accuracy - metres, 1 standard deviation
+     */
+    public void updateFix(double latitude, double longitude, float accuracy) {
+        double fixVariance = Math.max(accuracy, MIN_ACCURACY);
+        fixVariance *= fixVariance;
+
+        if (!initialised) {
+            setOrigin(latitude, longitude);
+            east = 0;
+            north = 0;
+            variance = fixVariance;
+            initialised = true;
+            version++;
+            versionEast = 0;
+            versionNorth = 0;
+            movedSinceFix = 0;
+            return;
+        }
+
+        double fixEast = (longitude - originLongitude) * metresPerDegreeLongitude;
+        double fixNorth = (latitude - originLatitude) * METRES_PER_DEGREE;
+        double gain = variance / (variance + fixVariance);
+        east += (fixEast - east) * gain;
+        north += (fixNorth - north) * gain;
+        variance *= 1 - gain;
+        movedSinceFix = 0;
+
+        if (Math.abs(east) > MAX_ORIGIN_DISTANCE || Math.abs(north) > MAX_ORIGIN_DISTANCE) {
+            setOrigin(getLatitude(), getLongitude());
+            versionEast -= east;
+            versionNorth -= north;
+            east = 0;
+            north = 0;
+        }
+        updateVersion();
+    }
+
+    public double getLatitude() {
+        return originLatitude + north / METRES_PER_DEGREE;
+    }
+
+    public double getLongitude() {
+        return originLongitude + east / metresPerDegreeLongitude;
+    }
+
+    /**
+     * Metres, 1 standard deviation
+     */
+    public double getAccuracy() {
+        return Math.sqrt(variance);
+    }
+
+    /**
+     * Whether camera movement is being used - there's been a fix,
+     * ARCore is tracking and a compass heading has been seen.
+     */
+    public boolean isDeadReckoning() {
+        return initialised && hasPose && hasHeading;
+    }
+
+    /**
+     * Degrees from north of ARCore's world -Z axis
+     */
+    public float getHeadingOffset() {
+        return (float) ((Math.toDegrees(Math.atan2(offsetSin, offsetCos)) + 360) % 360);
+    }
+
+    /**
+     * Goes up whenever the position has moved by setVersionDistance, so anything worked out
+     * from it can tell when it's stale without being redone every frame.
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    private void updateVersion() {
+        double dEast = east - versionEast;
+        double dNorth = north - versionNorth;
+        if (dEast * dEast + dNorth * dNorth >= versionDistance * versionDistance) {
+            version++;
+            versionEast = east;
+            versionNorth = north;
+        }
+    }
+
+    private void setOrigin(double latitude, double longitude) {
+        originLatitude = latitude;
+        originLongitude = longitude;
+        metresPerDegreeLongitude = METRES_PER_DEGREE * Math.cos(Math.toRadians(latitude));
+    }
+}
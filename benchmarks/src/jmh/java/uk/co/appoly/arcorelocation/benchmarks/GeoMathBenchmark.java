@@ -0,0 +1,79 @@
+package uk.co.appoly.arcorelocation.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import uk.co.appoly.arcorelocation.utils.LocationUtils;
+
+/**
+ * Distance and bearing from the device to a set of markers,
+ * one scalar call at a time against the batch kernel.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GeoMathBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int markerCount;
+
+    private double originLat = 51.4785;
+    private double originLon = -0.1197;
+    private double[] lats;
+    private double[] lons;
+    private double[] distances;
+    private double[] bearings;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        lats = new double[markerCount];
+        lons = new double[markerCount];
+        distances = new double[markerCount];
+        bearings = new double[markerCount];
+        // Scattered within roughly 5km
+        for (int i = 0; i < markerCount; i++) {
+            lats[i] = originLat + (random.nextDouble() - 0.5) * 0.09;
+            lons[i] = originLon + (random.nextDouble() - 0.5) * 0.14;
+        }
+    }
+
+    @Benchmark
+    public double[] scalar() {
+        for (int i = 0; i < markerCount; i++) {
+            distances[i] = LocationUtils.distance(lats[i], originLat, lons[i], originLon, 0, 0);
+            bearings[i] = LocationUtils.bearing(originLat, originLon, lats[i], lons[i]);
+        }
+        return distances;
+    }
+
+    @Benchmark
+    public double[] batchHaversine() {
+        LocationUtils.distancesAndBearings(originLat, originLon, lats, lons, markerCount,
+                distances, bearings);
+        return distances;
+    }
+
+    @Benchmark
+    public double[] batchLocalTangentPlane() {
+        LocationUtils.distancesAndBearings(originLat, originLon, lats, lons, markerCount,
+                distances, bearings, 10000);
+        return distances;
+    }
+
+    @Benchmark
+    public double[] batchDistanceOnly() {
+        LocationUtils.distancesAndBearings(originLat, originLon, lats, lons, markerCount,
+                distances, null);
+        return distances;
+    }
+}
@@ -0,0 +1,69 @@
+package uk.co.appoly.arcorelocation.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+import uk.co.appoly.arcorelocation.utils.KalmanConstantVelocity;
+import uk.co.appoly.arcorelocation.utils.KalmanLatLong;
+
+/**
+ * One KalmanLatLong.Process step, over a synthetic track,
+ * against a KalmanConstantVelocity update and a prediction between fixes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class KalmanBenchmark {
+
+    private Track track;
+    private KalmanLatLong filter;
+    private KalmanConstantVelocity constantVelocity;
+    private final double[] predicted = new double[2];
+    private int next;
+
+    @Setup
+    public void setUp() {
+        track = Track.walk(4096, 7);
+        filter = new KalmanLatLong(3);
+        constantVelocity = new KalmanConstantVelocity(1.5);
+        for (int i = 0; i < 16; i++)
+            constantVelocity.update(track.latitudes[i], track.longitudes[i], track.accuracies[i],
+                    track.times[i]);
+        next = 0;
+    }
+
+    @Benchmark
+    public double process() {
+        int i = next;
+        next = (next + 1) % track.size;
+        filter.Process(track.latitudes[i], track.longitudes[i], track.accuracies[i],
+                track.times[i], 3);
+        return filter.get_lat();
+    }
+
+    @Benchmark
+    public double constantVelocityUpdate() {
+        int i = next;
+        next = (next + 1) % track.size;
+        constantVelocity.update(track.latitudes[i], track.longitudes[i], track.accuracies[i],
+                track.times[i]);
+        return constantVelocity.getLatitude();
+    }
+
+    /**
+     * What a frame asks for between fixes
+     */
+    @Benchmark
+    public double constantVelocityPredict() {
+        next = (next + 1) & 1023;
+        constantVelocity.predict(constantVelocity.getTimeMillis() + next, predicted);
+        return predicted[0];
+    }
+}
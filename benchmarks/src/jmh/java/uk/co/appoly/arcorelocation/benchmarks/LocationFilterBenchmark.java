@@ -0,0 +1,43 @@
+package uk.co.appoly.arcorelocation.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+import uk.co.appoly.arcorelocation.sensor.LocationFilterChain;
+
+/**
+ * The checks DeviceLocation runs on every fix, over a walk with
+ * stale, inaccurate and jumpy fixes mixed in.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LocationFilterBenchmark {
+
+    private Track track;
+    private LocationFilterChain chain;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        track = Track.walk(4096, 11);
+        chain = new LocationFilterChain();
+        chain.setRunStartTime(0);
+        next = 0;
+    }
+
+    @Benchmark
+    public LocationFilterChain.Result filter() {
+        int i = next;
+        next = (next + 1) % track.size;
+        return chain.filter(track.latitudes[i], track.longitudes[i], track.accuracies[i],
+                track.speeds[i], track.times[i], track.ages[i]);
+    }
+}
@@ -0,0 +1,56 @@
+package uk.co.appoly.arcorelocation.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import uk.co.appoly.arcorelocation.utils.OcclusionBins;
+
+/**
+ * The per-frame removeOverlapping pass, for markers scattered around the camera
+ * at the distances LocationScene places them (up to 25m).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class OcclusionBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int markerCount;
+
+    private float[] offsets;
+    private OcclusionBins occlusionBins;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        offsets = new float[markerCount * 3];
+        for (int i = 0; i < markerCount; i++) {
+            double angle = random.nextDouble() * 2 * Math.PI;
+            double distance = 2 + random.nextDouble() * 23;
+            offsets[i * 3] = (float) (distance * Math.sin(angle));
+            offsets[i * 3 + 1] = (float) (random.nextDouble() * 4 - 1);
+            offsets[i * 3 + 2] = (float) (-distance * Math.cos(angle));
+        }
+        occlusionBins = new OcclusionBins(12);
+    }
+
+    @Benchmark
+    public boolean resolve() {
+        occlusionBins.clear();
+        for (int i = 0; i < markerCount; i++) {
+            occlusionBins.add(offsets[i * 3], offsets[i * 3 + 1], offsets[i * 3 + 2]);
+        }
+        occlusionBins.resolve();
+        return occlusionBins.isVisible(0);
+    }
+}
@@ -0,0 +1,121 @@
+package uk.co.appoly.arcorelocation.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import uk.co.appoly.arcorelocation.utils.LocationUtils;
+import uk.co.appoly.arcorelocation.utils.MarkerPlacements;
+import uk.co.appoly.arcorelocation.utils.MarkerStore;
+import uk.co.appoly.arcorelocation.utils.MarkersInRange;
+
+/**
+ * The geometry half of a LocationScene refresh, headless.
+ * <p>
+ * Markers are spread at a constant density (100 per square km) so the number within
+ * range of the device stays the same as the total grows. The indexed refresh should
+ * stay flat from 1k to 1M markers, while the full scan grows with the total.
+ * <p>
+ * That a warmed up refresh doesn't allocate is checked by RefreshAllocationTest.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RefreshBenchmark {
+
+    private static final double MARKERS_PER_SQUARE_KM = 100;
+    private static final int RENDER_WITHIN = 500;
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int markerCount;
+
+    private MarkerStore store;
+    private MarkersInRange markersInRange;
+    private MarkerPlacements placements;
+    private double[] distances;
+    private double deviceLatitude = 51.4785;
+    private double deviceLongitude = -0.1197;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        double sideKm = Math.sqrt(markerCount / MARKERS_PER_SQUARE_KM);
+        double latitudeSpan = sideKm * 1000 / 111320;
+        double longitudeSpan = latitudeSpan / Math.cos(Math.toRadians(deviceLatitude));
+
+        store = new MarkerStore();
+        for (int i = 0; i < markerCount; i++) {
+            store.add(deviceLatitude + (random.nextDouble() - 0.5) * latitudeSpan,
+                    deviceLongitude + (random.nextDouble() - 0.5) * longitudeSpan,
+                    RENDER_WITHIN);
+        }
+        markersInRange = new MarkersInRange();
+        placements = new MarkerPlacements();
+        placements.setView(90, 0, 30, 25, 0);
+        distances = new double[markerCount];
+    }
+
+    @Benchmark
+    public int indexed() {
+        return markersInRange.find(store, deviceLatitude, deviceLongitude, Integer.MAX_VALUE, 0);
+    }
+
+    @Benchmark
+    public int indexedLocalTangentPlane() {
+        return markersInRange.find(store, deviceLatitude, deviceLongitude, Integer.MAX_VALUE, 10000);
+    }
+
+    /**
+     * What LocationScene does at the start of a refresh: find, then order nearest first.
+     */
+    @Benchmark
+    public int refresh() {
+        int inRange = markersInRange.find(store, deviceLatitude, deviceLongitude, Integer.MAX_VALUE, 0);
+        markersInRange.sortByDistance();
+        return inRange;
+    }
+
+    /**
+     * The part of a refresh left on the render thread: the grid query and snapshot.
+     */
+    @Benchmark
+    public int snapshot() {
+        return placements.collect(store, deviceLatitude, deviceLongitude, Integer.MAX_VALUE);
+    }
+
+    /**
+     * The part of a refresh done on the compute executor: measuring,
+     * sorting and working out placements for a snapshot.
+     */
+    @Benchmark
+    public int placements() {
+        placements.collect(store, deviceLatitude, deviceLongitude, Integer.MAX_VALUE);
+        return placements.compute();
+    }
+
+    /**
+     * What a refresh did before the index: measure every marker.
+     */
+    @Benchmark
+    public int fullScan() {
+        int size = store.size();
+        LocationUtils.distancesAndBearings(deviceLatitude, deviceLongitude,
+                store.latitudes(), store.longitudes(), size, distances, null);
+        int[] renderWithin = store.renderWithin();
+        int inRange = 0;
+        for (int i = 0; i < size; i++) {
+            if (Math.round(distances[i]) <= renderWithin[i])
+                inRange++;
+        }
+        return inRange;
+    }
+}
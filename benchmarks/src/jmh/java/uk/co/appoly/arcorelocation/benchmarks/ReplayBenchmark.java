@@ -0,0 +1,66 @@
+package uk.co.appoly.arcorelocation.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import uk.co.appoly.arcorelocation.sensor.LocationFilterChain;
+import uk.co.appoly.arcorelocation.sensor.RotationVectorOrientation;
+import uk.co.appoly.arcorelocation.sensor.TraceRecorder;
+import uk.co.appoly.arcorelocation.sensor.TraceReplayer;
+
+/**
+ * Replays a recorded trace as fast as possible: a synthetic walk of fixes one second apart,
+ * with five rotation vector samples between each, as DeviceOrientation receives them.
+ * Record a real session with LocationScene.setTraceRecorder to measure that instead.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ReplayBenchmark {
+
+    private static final int SAMPLES_PER_FIX = 5;
+
+    private byte[] trace;
+
+    @Setup
+    public void setUp() throws IOException {
+        Track track = Track.walk(4096, 13);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TraceRecorder recorder = new TraceRecorder(bytes);
+        recorder.recordRunStart(0, 0);
+        float[] rotationVector = new float[4];
+        for (int i = 0; i < track.size; i++) {
+            long timeNanos = track.times[i] * 1000000L;
+            recorder.recordLocation(timeNanos, track.latitudes[i], track.longitudes[i],
+                    track.accuracies[i], track.speeds[i], track.times[i], track.ages[i]);
+            for (int j = 0; j < SAMPLES_PER_FIX; j++) {
+                // Upright, slowly turning about the vertical
+                double half = Math.toRadians((i * SAMPLES_PER_FIX + j) % 360) / 2;
+                rotationVector[0] = (float) (Math.sqrt(0.5) * Math.cos(half));
+                rotationVector[1] = (float) (Math.sqrt(0.5) * Math.sin(half));
+                rotationVector[2] = (float) (Math.sqrt(0.5) * Math.sin(half));
+                rotationVector[3] = (float) (Math.sqrt(0.5) * Math.cos(half));
+                recorder.recordRotation(timeNanos + (j + 1) * 200000000L, rotationVector,
+                        RotationVectorOrientation.ROTATION_0);
+            }
+        }
+        recorder.close();
+        trace = bytes.toByteArray();
+    }
+
+    @Benchmark
+    public long replay() throws IOException, InterruptedException {
+        TraceReplayer replayer = new TraceReplayer(new ByteArrayInputStream(trace));
+        return replayer.replay(new LocationFilterChain(), new RotationVectorOrientation());
+    }
+}
@@ -0,0 +1,53 @@
+package uk.co.appoly.arcorelocation.benchmarks;
+
+import java.util.Random;
+
+/**
+ * Synthetic GPS fixes for a walk, roughly one per second.
+ * Some fixes are stale, some have poor or missing accuracy and some jump away from the track.
+ */
+class Track {
+
+    final int size;
+    final double[] latitudes;
+    final double[] longitudes;
+    final float[] accuracies;
+    final float[] speeds;
+    final long[] times;
+    final long[] ages;
+
+    private Track(int size) {
+        this.size = size;
+        latitudes = new double[size];
+        longitudes = new double[size];
+        accuracies = new float[size];
+        speeds = new float[size];
+        times = new long[size];
+        ages = new long[size];
+    }
+
+    static Track walk(int size, long seed) {
+        Random random = new Random(seed);
+        Track track = new Track(size);
+        double latitude = 51.4785;
+        double longitude = -0.1197;
+        double heading = 0;
+        for (int i = 0; i < size; i++) {
+            // 1.4m/s walking pace, wandering direction
+            heading += random.nextGaussian() * 0.2;
+            latitude += Math.cos(heading) * 1.4 / 111320;
+            longitude += Math.sin(heading) * 1.4 / (111320 * Math.cos(Math.toRadians(latitude)));
+
+            double noise = random.nextDouble() < 0.05 ? 150 : 4;
+            track.latitudes[i] = latitude + random.nextGaussian() * noise / 111320;
+            track.longitudes[i] = longitude + random.nextGaussian() * noise / 111320;
+            track.accuracies[i] = random.nextDouble() < 0.1 ? 40 + random.nextInt(40) : 3 + random.nextInt(10);
+            if (random.nextDouble() < 0.02)
+                track.accuracies[i] = 0;
+            track.speeds[i] = 1.4f;
+            track.times[i] = i * 1000L;
+            track.ages[i] = random.nextDouble() < 0.05 ? 10000 : random.nextInt(500);
+        }
+        return track;
+    }
+}
@@ -0,0 +1,187 @@
+package uk.co.appoly.arcorelocation.sensor;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Traces recorded with TraceRecorder should replay through the filter chain and
+ * RotationVectorOrientation exactly as the live samples went through them.
+ */
+public class TraceReplayerTest {
+
+    private static final int FIXES = 600;
+    private static final int SAMPLES_PER_FIX = 5;
+    private static final int ROTATION_RECORD_BYTES = 27;
+
+    // What sample-walk.trace replays to
+    private static final long SAMPLE_RECORDS = 721;
+    private static final long SAMPLE_ACCEPTED = 97;
+    private static final long SAMPLE_OLD = 4;
+    private static final long SAMPLE_NO_ACCURACY = 2;
+    private static final long SAMPLE_INACCURATE = 11;
+    private static final long SAMPLE_KALMAN_REJECTED = 6;
+    private static final float SAMPLE_FINAL_HEADING = 161.69489F;
+
+    @Test
+    public void replayMatchesDirectRun() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TraceRecorder recorder = new TraceRecorder(bytes);
+        LocationFilterChain direct = new LocationFilterChain();
+        RotationVectorOrientation directOrientation = new RotationVectorOrientation();
+        Log directLog = new Log();
+        record(recorder, direct, directOrientation, directLog, FIXES, new Random(5));
+        recorder.close();
+
+        LocationFilterChain replayed = new LocationFilterChain();
+        Log replayLog = new Log();
+        TraceReplayer replayer = new TraceReplayer(new ByteArrayInputStream(bytes.toByteArray()));
+        replayer.setListener(replayLog);
+        long records = replayer.replay(replayed, new RotationVectorOrientation());
+
+        assertEquals(recorder.getRecordCount(), records);
+        assertEquals(directLog.results, replayLog.results);
+        assertEquals(directLog.headings, replayLog.headings);
+        assertEquals(direct.getStageCount(), replayed.getStageCount());
+        for (int stage = 0; stage < direct.getStageCount(); stage++) {
+            assertEquals(direct.getAcceptedCount(stage), replayed.getAcceptedCount(stage));
+            assertEquals(direct.getRejectedCount(stage), replayed.getRejectedCount(stage));
+        }
+        assertEquals(direct.getLatitude(), replayed.getLatitude(), 0);
+        assertEquals(direct.getLongitude(), replayed.getLongitude(), 0);
+    }
+
+    @Test
+    public void truncatedTraceStopsAtLastWholeRecord() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TraceRecorder recorder = new TraceRecorder(bytes);
+        Log directLog = new Log();
+        record(recorder, new LocationFilterChain(), new RotationVectorOrientation(), directLog,
+                FIXES, new Random(6));
+        recorder.close();
+        byte[] trace = bytes.toByteArray();
+        long records = recorder.getRecordCount();
+
+        // The last record is a rotation sample; cut it off at every byte
+        for (int cut = trace.length - ROTATION_RECORD_BYTES; cut < trace.length; cut++) {
+            Log replayLog = new Log();
+            TraceReplayer replayer = new TraceReplayer(new ByteArrayInputStream(trace, 0, cut));
+            replayer.setListener(replayLog);
+            long replayed = replayer.replay(new LocationFilterChain(), new RotationVectorOrientation());
+
+            assertEquals("Cut at " + cut, records - 1, replayed);
+            assertEquals(directLog.results, replayLog.results);
+            assertEquals(directLog.headings.subList(0, directLog.headings.size() - 1),
+                    replayLog.headings);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws Exception {
+        new TraceReplayer(new ByteArrayInputStream(new byte[]{'P', 'K', 3, 4, 0, 0}));
+    }
+
+    /**
+     * sample-walk.trace is a two minute synthetic walk, with bad fixes mixed in and the phone
+     * turning, recorded through TraceRecorder. Its results are pinned, so any change to the
+     * filters or the orientation math that changes what they make of it shows up here.
+     * Field recordings of problems can be added the same way.
+     */
+    @Test
+    public void sampleTraceReplaysAsRecorded() throws Exception {
+        InputStream stream = getClass().getResourceAsStream("sample-walk.trace");
+        assertNotNull(stream);
+        Log log = new Log();
+        TraceReplayer replayer = new TraceReplayer(stream);
+        replayer.setListener(log);
+        LocationFilterChain chain = new LocationFilterChain();
+        long records;
+        try {
+            records = replayer.replay(chain, new RotationVectorOrientation());
+        } finally {
+            replayer.close();
+        }
+
+        long[] counts = new long[LocationFilterChain.Result.values().length];
+        for (LocationFilterChain.Result result : log.results)
+            counts[result.ordinal()]++;
+        assertEquals(SAMPLE_RECORDS, records);
+        assertArrayEquals(new long[]{SAMPLE_ACCEPTED, SAMPLE_OLD, SAMPLE_NO_ACCURACY,
+                SAMPLE_INACCURATE, SAMPLE_KALMAN_REJECTED, 0}, counts);
+        // Math's trig may differ by an ulp or so between JVMs
+        assertEquals(SAMPLE_FINAL_HEADING, log.headings.get(log.headings.size() - 1), 0.001);
+    }
+
+    /**
+     * A walk of [fixes] fixes a second apart, some stale, inaccurate or jumping, with
+     * rotation vector samples between them, recorded and fed straight to [chain] and [orientation].
+     */
+    static void record(TraceRecorder recorder, LocationFilterChain chain,
+                       RotationVectorOrientation orientation, Log log, int fixes,
+                       Random random) {
+        recorder.recordRunStart(0, 0);
+        chain.setRunStartTime(0);
+        double latitude = 51.4785;
+        double longitude = -0.1197;
+        double walkHeading = 0;
+        double phoneHeading = 0;
+        float[] rotationVector = new float[4];
+        for (int i = 0; i < fixes; i++) {
+            walkHeading += random.nextGaussian() * 0.2;
+            latitude += Math.cos(walkHeading) * 1.4 / 111320;
+            longitude += Math.sin(walkHeading) * 1.4 / (111320 * Math.cos(Math.toRadians(latitude)));
+            double noise = random.nextDouble() < 0.05 ? 150 : 4;
+            double fixLatitude = latitude + random.nextGaussian() * noise / 111320;
+            double fixLongitude = longitude + random.nextGaussian() * noise / 111320;
+            float accuracy = random.nextDouble() < 0.1 ? 40 + random.nextInt(40) : 3 + random.nextInt(10);
+            if (random.nextDouble() < 0.02)
+                accuracy = 0;
+            long timeMillis = i * 1000L;
+            long ageMillis = random.nextDouble() < 0.05 ? 10000 : random.nextInt(500);
+
+            recorder.recordLocation(timeMillis * 1000000, fixLatitude, fixLongitude, accuracy,
+                    1.4f, timeMillis, ageMillis);
+            log.onLocation(timeMillis * 1000000, chain.filter(fixLatitude, fixLongitude,
+                    accuracy, 1.4f, timeMillis, ageMillis));
+
+            for (int j = 0; j < SAMPLES_PER_FIX; j++) {
+                // Upright, turning about the vertical, in any display rotation
+                phoneHeading += random.nextGaussian() * 10;
+                double half = Math.toRadians(phoneHeading) / 2;
+                rotationVector[0] = (float) (Math.sqrt(0.5) * Math.cos(half));
+                rotationVector[1] = (float) (Math.sqrt(0.5) * Math.sin(half));
+                rotationVector[2] = (float) (Math.sqrt(0.5) * Math.sin(half));
+                rotationVector[3] = (float) (Math.sqrt(0.5) * Math.cos(half));
+                int displayRotation = (i / 60) % 4;
+                long timeNanos = timeMillis * 1000000 + (j + 1) * 200000000L;
+                recorder.recordRotation(timeNanos, rotationVector, displayRotation);
+                log.onRotation(timeNanos, orientation.update(rotationVector, displayRotation));
+            }
+        }
+    }
+
+    static class Log implements TraceReplayer.Listener {
+        final List<LocationFilterChain.Result> results = new ArrayList<>();
+        final List<Float> headings = new ArrayList<>();
+
+        @Override
+        public void onLocation(long timeNanos, LocationFilterChain.Result result) {
+            results.add(result);
+        }
+
+        @Override
+        public void onRotation(long timeNanos, float orientation) {
+            headings.add(orientation);
+        }
+    }
+}
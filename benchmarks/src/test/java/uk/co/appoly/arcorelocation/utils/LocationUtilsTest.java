@@ -0,0 +1,134 @@
+package uk.co.appoly.arcorelocation.utils;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The batch distancesAndBearings against the scalar distance() and bearing():
+ * haversine should match exactly, the local tangent plane within the limits GeoMathMode claims.
+ */
+public class LocationUtilsTest {
+
+    private static final int COUNT = 20000;
+    private static final double MAX_LATITUDE = 80;
+    private static final double APPROXIMATE_WITHIN = 10000;
+
+    // GeoMathMode.LOCAL_TANGENT_PLANE limits
+    private static final double MAX_DISTANCE_ERROR = 0.04;
+    private static final double MAX_RELATIVE_DISTANCE_ERROR = 0.000004;
+    private static final double MAX_BEARING_ERROR = 0.001;
+
+    @Test
+    public void haversineMatchesScalarExactly() {
+        Random random = new Random(1);
+        double[] lats = new double[COUNT];
+        double[] lons = new double[COUNT];
+        int[] indices = new int[COUNT];
+        double[] distances = new double[COUNT];
+        double[] bearings = new double[COUNT];
+        double[] indexedDistances = new double[COUNT];
+        double[] indexedBearings = new double[COUNT];
+
+        for (int origin = 0; origin < 20; origin++) {
+            double originLat = random.nextDouble() * 180 - 90;
+            double originLon = random.nextDouble() * 360 - 180;
+            for (int i = 0; i < COUNT; i++) {
+                // Near and far, including across the antimeridian
+                double range = i % 2 == 0 ? 0.1 : 180;
+                lats[i] = Math.max(-90, Math.min(90, originLat + (random.nextDouble() * 2 - 1) * range));
+                lons[i] = originLon + (random.nextDouble() * 2 - 1) * range;
+                indices[i] = COUNT - 1 - i;
+            }
+
+            LocationUtils.distancesAndBearings(originLat, originLon, lats, lons, COUNT,
+                    distances, bearings);
+            LocationUtils.distancesAndBearings(originLat, originLon, lats, lons, indices, COUNT,
+                    indexedDistances, indexedBearings);
+
+            for (int i = 0; i < COUNT; i++) {
+                double distance = LocationUtils.distance(originLat, lats[i], originLon, lons[i], 0, 0);
+                double bearing = LocationUtils.bearing(originLat, originLon, lats[i], lons[i]);
+                assertEquals(distance, distances[i], 0);
+                assertEquals(bearing, bearings[i], 0);
+                assertEquals(distances[indices[i]], indexedDistances[i], 0);
+                assertEquals(bearings[indices[i]], indexedBearings[i], 0);
+            }
+        }
+    }
+
+    @Test
+    public void localTangentPlaneWithinLimits() {
+        Random random = new Random(2);
+        double[] lats = new double[COUNT];
+        double[] lons = new double[COUNT];
+        double[] distances = new double[COUNT];
+        double[] bearings = new double[COUNT];
+        double[] point = new double[2];
+
+        double worstDistance = 0;
+        double worstRelative = 0;
+        double worstBearing = 0;
+        for (int origin = 0; origin < 50; origin++) {
+            // Every fifth origin is at the latitude limit, and some straddle the antimeridian
+            double originLat = origin % 5 == 0
+                    ? (origin % 2 == 0 ? MAX_LATITUDE : -MAX_LATITUDE)
+                    : (random.nextDouble() * 2 - 1) * MAX_LATITUDE;
+            double originLon = origin % 7 == 0 ? 179.99 : random.nextDouble() * 360 - 180;
+            int count = 0;
+            while (count < COUNT) {
+                double metres = 1 + random.nextDouble() * (APPROXIMATE_WITHIN - 1);
+                destination(originLat, originLon, random.nextDouble() * 360, metres, point);
+                if (Math.abs(point[0]) > MAX_LATITUDE)
+                    continue;
+                lats[count] = point[0];
+                lons[count] = point[1];
+                count++;
+            }
+
+            // A little over the range, so points right at the edge aren't handed to haversine
+            LocationUtils.distancesAndBearings(originLat, originLon, lats, lons, COUNT,
+                    distances, bearings, APPROXIMATE_WITHIN * 1.01);
+
+            for (int i = 0; i < COUNT; i++) {
+                double distance = LocationUtils.distance(originLat, lats[i], originLon, lons[i], 0, 0);
+                double bearing = LocationUtils.bearing(originLat, originLon, lats[i], lons[i]);
+                double distanceError = Math.abs(distances[i] - distance);
+                double bearingError = angleBetween(bearings[i], bearing);
+                worstDistance = Math.max(worstDistance, distanceError);
+                worstRelative = Math.max(worstRelative, distanceError / distance);
+                worstBearing = Math.max(worstBearing, bearingError);
+            }
+        }
+
+        assertTrue("Distance error " + worstDistance + "m", worstDistance <= MAX_DISTANCE_ERROR);
+        assertTrue("Relative distance error " + worstRelative,
+                worstRelative <= MAX_RELATIVE_DISTANCE_ERROR);
+        assertTrue("Bearing error " + worstBearing + " degrees", worstBearing <= MAX_BEARING_ERROR);
+    }
+
+    /**
+     * Point [metres] from the origin along the great circle at [bearing], into out[0] and out[1]
+     */
+    private static void destination(double latitude, double longitude, double bearing,
+                                    double metres, double[] out) {
+        double angle = metres / (6371 * 1000);
+        double lat1 = Math.toRadians(latitude);
+        double theta = Math.toRadians(bearing);
+        double lat2 = Math.asin(Math.sin(lat1) * Math.cos(angle)
+                + Math.cos(lat1) * Math.sin(angle) * Math.cos(theta));
+        double lon2 = Math.toRadians(longitude) + Math.atan2(
+                Math.sin(theta) * Math.sin(angle) * Math.cos(lat1),
+                Math.cos(angle) - Math.sin(lat1) * Math.sin(lat2));
+        out[0] = Math.toDegrees(lat2);
+        out[1] = (Math.toDegrees(lon2) + 540) % 360 - 180;
+    }
+
+    private static double angleBetween(double a, double b) {
+        double difference = Math.abs(a - b) % 360;
+        return difference > 180 ? 360 - difference : difference;
+    }
+}
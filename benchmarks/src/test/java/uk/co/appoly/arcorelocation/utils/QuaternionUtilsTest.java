@@ -0,0 +1,152 @@
+package uk.co.appoly.arcorelocation.utils;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * QuaternionUtils.lookRotation against Sceneform's Quaternion.lookRotation, which is
+ * rotationBetweenVectors(forward(), f), then the up vector it leaves rotated back upright.
+ * That composition is written out below on plain floats, since Sceneform doesn't run on a JVM.
+ * <p>
+ * Where either step turns nearly 180 degree, rotationBetweenVectors flips about a fixed axis rather
+ * than the one between the vectors, which can leave forward off target (e.g. anything behind
+ * the node with x near 0). Only the forward direction is checked there.
+ */
+public class QuaternionUtilsTest {
+
+    private static final float TOLERANCE = 1e-4F;
+    // A little inside rotationBetweenVectors' own -1 + 0.001, so rounding can't straddle it
+    private static final float NEAR_HALF_TURN = -1 + 0.01F;
+
+    @Test
+    public void cameraStraightBehindIsHalfTurn() {
+        // Camera out along +Z from the node: the node's -Z has to turn round to face it
+        float[] q = new float[4];
+        QuaternionUtils.lookRotation(0, 0, 1, q);
+        assertSameRotation(new float[]{0, 1, 0, 0}, q);
+    }
+
+    @Test
+    public void cameraStraightAheadIsIdentity() {
+        float[] q = new float[4];
+        QuaternionUtils.lookRotation(0, 0, -5, q);
+        assertSameRotation(new float[]{0, 0, 0, 1}, q);
+    }
+
+    @Test
+    public void matchesSceneform() {
+        float[][] directions = {
+                {1, 0, 0}, {-1, 0, 0}, {0, 0, 1}, {0, 0, -1},
+                {1, 0, 1}, {-3, 0, 2}, {2, 1, -1}, {0.5F, -2, 3}, {-1, 0.9F, -0.2F}
+        };
+        float[] q = new float[4];
+        for (float[] d : directions)
+            assertMatchesSceneform(d[0], d[1], d[2], q);
+
+        Random random = new Random(4);
+        for (int i = 0; i < 10000; i++) {
+            float x = (float) random.nextGaussian();
+            float y = (float) random.nextGaussian();
+            float z = (float) random.nextGaussian();
+            // Keep away from straight up or down, where any heading is right
+            if (Math.abs(y) > 0.95 * Math.sqrt(x * x + y * y + z * z))
+                continue;
+            assertMatchesSceneform(x, y, z, q);
+        }
+    }
+
+    private static void assertMatchesSceneform(float x, float y, float z, float[] q) {
+        QuaternionUtils.lookRotation(x, y, z, q);
+        float[] expected = sceneformLookRotation(x, y, z);
+        if (expected != null)
+            assertSameRotation(expected, q);
+        assertForward(new float[]{x, y, z}, q);
+    }
+
+    /**
+     * The node's forward, -Z, should end up pointing along [direction]
+     */
+    private static void assertForward(float[] direction, float[] q) {
+        float[] forward = rotate(q, 0, 0, -1);
+        float length = (float) Math.sqrt(dot(direction, direction));
+        for (int i = 0; i < 3; i++)
+            assertEquals(direction[i] / length, forward[i], TOLERANCE);
+    }
+
+    /**
+     * q and -q are the same rotation
+     */
+    private static void assertSameRotation(float[] expected, float[] actual) {
+        float dot = expected[0] * actual[0] + expected[1] * actual[1]
+                + expected[2] * actual[2] + expected[3] * actual[3];
+        assertTrue("Expected " + toString(expected) + " but was " + toString(actual),
+                Math.abs(Math.abs(dot) - 1) < TOLERANCE);
+    }
+
+    /**
+     * @return - null where one of its steps is a near 180 degree turn
+     */
+    private static float[] sceneformLookRotation(float x, float y, float z) {
+        float[] forward = normalized(new float[]{x, y, z});
+        float[] up = {0, 1, 0};
+        float[] rotateForward = rotationBetweenVectors(new float[]{0, 0, -1}, forward);
+        float[] right = cross(forward, up);
+        float[] desiredUp = cross(right, forward);
+        float[] newUp = rotate(rotateForward, 0, 1, 0);
+        if (-forward[2] < NEAR_HALF_TURN || dot(normalized(newUp), normalized(desiredUp)) < NEAR_HALF_TURN)
+            return null;
+        float[] rotateUp = rotationBetweenVectors(newUp, desiredUp);
+        return multiply(rotateUp, rotateForward);
+    }
+
+    private static float[] rotationBetweenVectors(float[] start, float[] end) {
+        start = normalized(start);
+        end = normalized(end);
+        float cosTheta = dot(start, end);
+        if (cosTheta < -1 + 0.001F) {
+            float[] axis = cross(new float[]{0, 0, 1}, start);
+            if (dot(axis, axis) < 0.01F)
+                axis = cross(new float[]{1, 0, 0}, start);
+            axis = normalized(axis);
+            return new float[]{axis[0], axis[1], axis[2], 0};
+        }
+        float[] axis = cross(start, end);
+        float s = (float) Math.sqrt((1 + cosTheta) * 2);
+        return new float[]{axis[0] / s, axis[1] / s, axis[2] / s, s / 2};
+    }
+
+    private static float[] multiply(float[] a, float[] b) {
+        return new float[]{
+                a[3] * b[0] + a[0] * b[3] + a[1] * b[2] - a[2] * b[1],
+                a[3] * b[1] - a[0] * b[2] + a[1] * b[3] + a[2] * b[0],
+                a[3] * b[2] + a[0] * b[1] - a[1] * b[0] + a[2] * b[3],
+                a[3] * b[3] - a[0] * b[0] - a[1] * b[1] - a[2] * b[2]};
+    }
+
+    private static float[] rotate(float[] q, float x, float y, float z) {
+        float[] p = multiply(multiply(q, new float[]{x, y, z, 0}),
+                new float[]{-q[0], -q[1], -q[2], q[3]});
+        return new float[]{p[0], p[1], p[2]};
+    }
+
+    private static float[] cross(float[] a, float[] b) {
+        return new float[]{a[1] * b[2] - a[2] * b[1], a[2] * b[0] - a[0] * b[2], a[0] * b[1] - a[1] * b[0]};
+    }
+
+    private static float dot(float[] a, float[] b) {
+        return a[0] * b[0] + a[1] * b[1] + a[2] * b[2];
+    }
+
+    private static float[] normalized(float[] v) {
+        float length = (float) Math.sqrt(dot(v, v));
+        return new float[]{v[0] / length, v[1] / length, v[2] / length};
+    }
+
+    private static String toString(float[] q) {
+        return "(" + q[0] + ", " + q[1] + ", " + q[2] + ", " + q[3] + ")";
+    }
+}
@@ -0,0 +1,118 @@
+package uk.co.appoly.arcorelocation.utils;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The headless half of a LocationScene refresh, and the per-frame work after it,
+ * shouldn't allocate once warmed up.
+ * <p>
+ * Each pass does what the scene does: snapshot the markers near the device, compute
+ * placements (view, stacking, budget and clustering), read them back, then work out
+ * distances for the placed markers and the overlap check. The device and some markers
+ * move between passes, so the grid and distance caches are exercised too.
+ */
+public class RefreshAllocationTest {
+
+    private static final int MARKER_COUNT = 20000;
+    private static final int WARM_UP_PASSES = 2000;
+    private static final int PASSES = 500;
+
+    private final MarkerStore store = new MarkerStore();
+    private final MarkerPlacements placements = new MarkerPlacements();
+    private final OcclusionBins occlusionBins = new OcclusionBins(12F);
+    private final int[] ids = new int[MARKER_COUNT];
+    private int[] activeIndices = new int[16];
+    private double[] activeDistances = new double[16];
+    private double[] activeBearings = new double[16];
+    private final Random random = new Random(3);
+    private double deviceLatitude = 51.4785;
+    private double deviceLongitude = -0.1197;
+    private float orientation = 0;
+    private long checksum = 0;
+
+    @Test
+    public void steadyStateRefreshDoesNotAllocate() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        Assume.assumeTrue(allocations.isThreadAllocatedMemorySupported());
+        allocations.setThreadAllocatedMemoryEnabled(true);
+        long threadId = Thread.currentThread().getId();
+
+        // ~2km square around the device
+        for (int i = 0; i < MARKER_COUNT; i++) {
+            ids[i] = store.add(deviceLatitude + (random.nextDouble() - 0.5) * 0.02,
+                    deviceLongitude + (random.nextDouble() - 0.5) * 0.03,
+                    random.nextInt(4) == 0 ? Integer.MAX_VALUE : 500);
+        }
+        placements.setStacking(12, 1.5F);
+        placements.setBudget(100);
+        placements.setClustering(2, 400);
+
+        for (int i = 0; i < WARM_UP_PASSES; i++)
+            refresh();
+
+        // Measure the measuring once, so its own first-call costs aren't counted
+        long before = allocations.getThreadAllocatedBytes(threadId);
+        before = allocations.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < PASSES; i++)
+            refresh();
+        long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals("Bytes allocated over " + PASSES + " refreshes (checksum " + checksum + ")",
+                0, allocated);
+    }
+
+    private void refresh() {
+        // Walk, turn, and move a few markers
+        deviceLatitude += (random.nextDouble() - 0.5) * 0.00002;
+        deviceLongitude += (random.nextDouble() - 0.5) * 0.00003;
+        orientation = (orientation + 3) % 360;
+        for (int i = 0; i < 10; i++) {
+            int id = ids[random.nextInt(MARKER_COUNT)];
+            store.setPosition(id, store.getLatitude(id) + (random.nextDouble() - 0.5) * 0.0001,
+                    store.getLongitude(id) + (random.nextDouble() - 0.5) * 0.0001);
+        }
+
+        // Frame thread: snapshot
+        int candidates = placements.collect(store, deviceLatitude, deviceLongitude, 1000);
+        for (int i = 0; i < candidates; i++) {
+            placements.setCandidateHeight(i, i % 3);
+            placements.setCandidatePriority(i, i % 7 == 0 ? 1 : 0);
+        }
+        placements.setView(orientation, 0, 30, 25, 10000);
+
+        // Compute executor
+        int placed = placements.compute();
+
+        // Frame thread: apply, then per-frame distances and overlap
+        if (activeIndices.length < placed) {
+            activeIndices = new int[placed * 2];
+            activeDistances = new double[placed * 2];
+            activeBearings = new double[placed * 2];
+        }
+        occlusionBins.clear();
+        for (int i = 0; i < placed; i++) {
+            int id = placements.getCandidateId(placements.getCandidate(i));
+            activeIndices[i] = store.indexOf(id);
+            float x = placements.getX(i);
+            float z = placements.getZ(i);
+            occlusionBins.add(x, placements.getRenderHeight(i) + placements.getStackOffset(i), z);
+            checksum += placements.getClusterSize(i) + Math.round(placements.getDistance(i));
+        }
+        LocationUtils.distancesAndBearings(deviceLatitude, deviceLongitude,
+                store.latitudes(), store.longitudes(), activeIndices, placed,
+                activeDistances, activeBearings, 10000);
+        occlusionBins.resolve();
+        for (int i = 0; i < placed; i++) {
+            if (occlusionBins.isVisible(i))
+                checksum++;
+        }
+    }
+}